@@ -5,21 +5,91 @@ import java.io.IOException;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class Client {
-    private final Connection connection;
+    private final String host;
+    private final int port;
+    private volatile Connection connection; // Substituída em reconnect()
     private boolean authenticated;
     private String currentUser;
+    private String sessionToken; // Emitido pelo servidor no login; permite retomar a sessão noutra conexão
+    private Connection.Pending pendingResume; // Retoma enviada mas ainda não confirmada
     private String lastErrorMessage;
+    private volatile int features; // Codificação pedida ao servidor em cada conexão (Protocol.FEATURE_*)
     private final ReentrantReadWriteLock authLock;
     
     public Client(String host, int port) {
+        this.host = host;
+        this.port = port;
         this.connection = new Connection(host, port);
         this.authenticated = false;
         this.lastErrorMessage = null;
         this.authLock = new ReentrantReadWriteLock();
     }
     
+    /**
+     * Pede uma codificação (Protocol.FEATURE_*: varints, preços em cêntimos, dicionário de produtos)
+     * nas próximas conexões; 0 volta à original.
+     * Tem de ser chamado antes de connect(); um servidor antigo recusa e a conexão fica na codificação original.
+     */
+    public void setEncodingFeatures(int features) {
+        this.features = features;
+    }
+    
     public void connect() throws IOException {
         connection.connect();
+        if (features != 0) {
+            connection.negotiate(features);
+        }
+    }
+    
+    /**
+     * Abre uma nova conexão (depois de uma quebra) e retoma a sessão sem voltar a enviar credenciais.
+     * A retoma segue em pipeline com o primeiro pedido: o servidor trata-a antes dele, por isso não
+     * há uma ida e volta extra. Se o token já tiver expirado, o pedido falha como não autenticado
+     * e é preciso fazer login de novo.
+     * @return true se havia uma sessão para retomar
+     */
+    public boolean reconnect() throws IOException {
+        Connection fresh = new Connection(host, port);
+        fresh.connect();
+        if (features != 0) {
+            fresh.negotiate(features);
+        }
+        Connection old = connection;
+        connection = fresh;
+        old.close();
+        
+        authLock.writeLock().lock();
+        try {
+            if (sessionToken == null) {
+                authenticated = false;
+                currentUser = null;
+                pendingResume = null;
+                return false;
+            }
+            pendingResume = fresh.resumeAsync(sessionToken);
+            authenticated = true;
+            return true;
+        } finally {
+            authLock.writeLock().unlock();
+        }
+    }
+    
+    /**
+     * Espera pela confirmação da retoma feita em reconnect().
+     * @return true se a sessão continua válida
+     */
+    public boolean awaitResume() throws IOException {
+        Connection.Pending pending;
+        authLock.readLock().lock();
+        try {
+            pending = pendingResume;
+        } finally {
+            authLock.readLock().unlock();
+        }
+        if (pending != null) {
+            settleResume(pending, pending.get());
+        }
+        return isAuthenticated();
     }
     
     public boolean isConnected() {
@@ -57,6 +127,8 @@ public class Client {
             try {
                 authenticated = true;
                 currentUser = username;
+                sessionToken = response.getString("token");
+                pendingResume = null;
             } finally {
                 authLock.writeLock().unlock();
             }
@@ -74,6 +146,8 @@ public class Client {
             try {
                 authenticated = false;
                 currentUser = null;
+                sessionToken = null;
+                pendingResume = null;
             } finally {
                 authLock.writeLock().unlock();
             }
@@ -153,6 +227,19 @@ public class Client {
         return new java.util.ArrayList<>();
     }
     
+    // Várias consultas numa só ida e volta (ver Connection.Multi); as respostas vêm pela mesma ordem
+    public Connection.Multi multi() throws IOException {
+        ensureAuthenticated();
+        return connection.multi();
+    }
+    
+    // Eventos em stream, para resultados grandes: a memória usada não depende do número de eventos.
+    // Um erro do servidor a meio é lançado pelo iterador como UncheckedIOException.
+    public Connection.EventStream filterEventsStream(java.util.List<String> products, int dayOffset) throws IOException {
+        ensureAuthenticated();
+        return connection.filterEventsStream(products, dayOffset);
+    }
+    
     public Boolean simultaneousSales(String product1, String product2) throws IOException {
         ensureAuthenticated();
         Protocol.Response response = connection.simultaneousSales(product1, product2);
@@ -177,15 +264,52 @@ public class Client {
         }
     }
     
+    // O token de sessão é mantido: reconnect() pode retomar a sessão enquanto não expirar
     public void close() {
         connection.close();
-        authenticated = false;
-        currentUser = null;
+        authLock.writeLock().lock();
+        try {
+            authenticated = false;
+            currentUser = null;
+            pendingResume = null;
+        } finally {
+            authLock.writeLock().unlock();
+        }
     }
     
-    private void ensureAuthenticated() {
-        if (!authenticated) {
+    private void ensureAuthenticated() throws IOException {
+        Connection.Pending pending;
+        authLock.readLock().lock();
+        try {
+            pending = pendingResume;
+        } finally {
+            authLock.readLock().unlock();
+        }
+        // Só olha para a retoma se a resposta já chegou (não bloqueia o pedido seguinte)
+        if (pending != null && pending.isDone()) {
+            settleResume(pending, pending.get());
+        }
+        if (!isAuthenticated()) {
             throw new IllegalStateException("Não autenticado. Faça login primeiro.");
         }
     }
+    
+    private void settleResume(Connection.Pending pending, Protocol.Response response) {
+        authLock.writeLock().lock();
+        try {
+            if (pendingResume != pending) {
+                return; // Entretanto houve login, logout ou outra reconexão
+            }
+            pendingResume = null;
+            if (response.isSuccess()) {
+                currentUser = response.getString("username");
+            } else {
+                authenticated = false;
+                currentUser = null;
+                sessionToken = null;
+            }
+        } finally {
+            authLock.writeLock().unlock();
+        }
+    }
 }
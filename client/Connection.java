@@ -1,23 +1,33 @@
 package client;
 
+import geral.BufferPool;
 import geral.Protocol;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Conexão que usa o Demultiplexer para permitir múltiplas threads
  * submeterem pedidos concorrentemente.
  */
 public class Connection implements AutoCloseable {
+    private static final int STREAM_BUFFERED_PARTS = 4; // Partes de um stream guardadas à espera do consumidor
+    
     private final String host;
     private final int port;
     private Socket socket;
     private Demultiplexer demux;
     private boolean connected;
+    private volatile Protocol.Encoding encoding = Protocol.Encoding.LEGACY; // Alterada só por negotiate()
+    // Serializar e enviar sob o mesmo lock: com dicionário de produtos os ids dependem da ordem dos pedidos
+    private final ReentrantLock sendLock = new ReentrantLock();
+    private final BufferPool.Output requestBuffer = new BufferPool.Output(); // Protegido por sendLock
     
     public Connection(String host, int port) {
         this.host = host;
@@ -32,9 +42,28 @@ public class Connection implements AutoCloseable {
         
         socket = new Socket(host, port);
         demux = new Demultiplexer(socket);
+        encoding = Protocol.Encoding.LEGACY;
         connected = true;
     }
     
+    /**
+     Negocia a codificação da conexão (Protocol.FEATURE_*). Deve ser chamado logo a seguir a connect(),
+     antes de qualquer outro pedido: o servidor muda de codificação assim que lê o OP_HELLO.
+     Retorna as opções aceites; um servidor que não conhece OP_HELLO recusa-o e a conexão fica LEGACY.
+     */
+    public int negotiate(int features) throws IOException {
+        Protocol.Request request = new Protocol.Request(0, Protocol.OP_HELLO);
+        request.setParam("features", features);
+        Protocol.Response response = sendRequest(request);
+        Integer accepted = response.isSuccess() ? response.getInt("features") : null;
+        encoding = Protocol.Encoding.of(accepted == null ? 0 : accepted);
+        return encoding.getFeatures();
+    }
+    
+    public Protocol.Encoding getEncoding() {
+        return encoding;
+    }
+    
     public boolean isConnected() {
         return connected && socket != null && !socket.isClosed();
     }
@@ -43,24 +72,91 @@ public class Connection implements AutoCloseable {
      Envia um pedido e aguarda a response (thread-safe com Demultiplexer).
      */
     private Protocol.Response sendRequest(Protocol.Request request) throws IOException {
+        return sendAsync(request).get();
+    }
+    
+    /**
+     Envia um pedido sem esperar pela response. O servidor trata os pedidos de estado
+     (login, retoma de sessão, ...) pela ordem de chegada, por isso um pedido enviado a seguir
+     já vê o seu efeito, mesmo sem a response ter chegado.
+     */
+    private Pending sendAsync(Protocol.Request request) throws IOException {
+        return new Pending(request.getOperation(), post(request, 0));
+    }
+    
+    /**
+     Serializa e envia o pedido; streamCapacity > 0 pede uma resposta em stream.
+     */
+    private Posted post(Protocol.Request request, int streamCapacity) throws IOException {
         if (!isConnected()) {
             throw new IllegalStateException("Não conectado");
         }
         
-        // Serializar request
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        DataOutputStream dos = new DataOutputStream(baos);
-        request.writeTo(dos);
-        dos.flush();
-        byte[] requestData = baos.toByteArray();
+        sendLock.lock();
+        try {
+            // Serializar request no buffer da conexão (a response vem na mesma codificação)
+            Protocol.Encoding enc = encoding;
+            requestBuffer.reset();
+            request.writeTo(requestBuffer.data(), enc);
+            byte[] requestData = requestBuffer.array();
+            int length = requestBuffer.size();
+            
+            // Enviar via Demultiplexer (escreve no socket antes de retornar: o buffer pode ser reutilizado)
+            int tag = streamCapacity > 0
+                ? demux.postStream(requestData, length, streamCapacity)
+                : demux.post(requestData, length);
+            return new Posted(tag, enc);
+        } finally {
+            sendLock.unlock();
+        }
+    }
+    
+    /**
+     Tag e codificação de um pedido enviado.
+     */
+    private static final class Posted {
+        final int tag;
+        final Protocol.Encoding encoding;
+        
+        Posted(int tag, Protocol.Encoding encoding) {
+            this.tag = tag;
+            this.encoding = encoding;
+        }
+    }
+    
+    /**
+     Response ainda por receber de um pedido enviado com sendAsync.
+     */
+    public final class Pending {
+        private final int tag;
+        private final byte operation;
+        private final Protocol.Encoding encoding;
+        private final ReentrantLock lock = new ReentrantLock();
+        private Protocol.Response response;
+        
+        private Pending(byte operation, Posted posted) {
+            this.tag = posted.tag;
+            this.operation = operation;
+            this.encoding = posted.encoding;
+        }
         
-        // Enviar via Demultiplexer (thread-safe)
-        byte[] responseData = demux.send(requestData);
+        public boolean isDone() {
+            return demux.isAnswered(tag);
+        }
         
-        // Desserializar response
-        ByteArrayInputStream bais = new ByteArrayInputStream(responseData);
-        DataInputStream dis = new DataInputStream(bais);
-        return Protocol.Response.readFrom(dis, request.getOperation());
+        // Pode ser chamado por várias threads: a response só é lida do Demultiplexer uma vez
+        public Protocol.Response get() throws IOException {
+            lock.lock();
+            try {
+                if (response == null) {
+                    // Desserializar response diretamente do frame recebido
+                    response = demux.receive(tag, in -> Protocol.Response.readFrom(in, operation, encoding));
+                }
+                return response;
+            } finally {
+                lock.unlock();
+            }
+        }
     }
     
     public Protocol.Response register(String username, String password) throws IOException {
@@ -77,6 +173,19 @@ public class Connection implements AutoCloseable {
         return sendRequest(request);
     }
     
+    public Protocol.Response resume(String token) throws IOException {
+        return resumeAsync(token).get();
+    }
+    
+    /**
+     Retoma a sessão sem esperar pela validação do token: o pedido seguinte pode partir de imediato.
+     */
+    public Pending resumeAsync(String token) throws IOException {
+        Protocol.Request request = new Protocol.Request(0, Protocol.OP_RESUME);
+        request.setParam("token", token);
+        return sendAsync(request);
+    }
+    
     public Protocol.Response logout() throws IOException {
         Protocol.Request request = new Protocol.Request(0, Protocol.OP_LOGOUT);
         return sendRequest(request);
@@ -91,38 +200,176 @@ public class Connection implements AutoCloseable {
     }
     
     public Protocol.Response aggregateQuantity(String product, int days) throws IOException {
-        Protocol.Request request = new Protocol.Request(0, Protocol.OP_QUANTITY_SOLD);
-        request.setParam("product", product);
-        request.setParam("days", days);
-        return sendRequest(request);
+        return sendRequest(aggregation(0, Protocol.OP_QUANTITY_SOLD, product, days));
     }
     
     public Protocol.Response aggregateVolume(String product, int days) throws IOException {
-        Protocol.Request request = new Protocol.Request(0, Protocol.OP_SALES_VOLUME);
-        request.setParam("product", product);
-        request.setParam("days", days);
-        return sendRequest(request);
+        return sendRequest(aggregation(0, Protocol.OP_SALES_VOLUME, product, days));
     }
     
     public Protocol.Response aggregateAverage(String product, int days) throws IOException {
-        Protocol.Request request = new Protocol.Request(0, Protocol.OP_AVERAGE_PRICE);
-        request.setParam("product", product);
-        request.setParam("days", days);
-        return sendRequest(request);
+        return sendRequest(aggregation(0, Protocol.OP_AVERAGE_PRICE, product, days));
     }
     
     public Protocol.Response aggregateMaxPrice(String product, int days) throws IOException {
-        Protocol.Request request = new Protocol.Request(0, Protocol.OP_MAX_PRICE);
+        return sendRequest(aggregation(0, Protocol.OP_MAX_PRICE, product, days));
+    }
+    
+    public Protocol.Response filterEvents(java.util.List<String> products, int dayOffset) throws IOException {
+        return sendRequest(filter(0, Protocol.OP_FILTER_EVENTS, products, dayOffset));
+    }
+    
+    private static Protocol.Request aggregation(int requestId, byte operation, String product, int days) {
+        Protocol.Request request = new Protocol.Request(requestId, operation);
         request.setParam("product", product);
         request.setParam("days", days);
-        return sendRequest(request);
+        return request;
     }
     
-    public Protocol.Response filterEvents(java.util.List<String> products, int dayOffset) throws IOException {
-        Protocol.Request request = new Protocol.Request(0, Protocol.OP_FILTER_EVENTS);
+    private static Protocol.Request filter(int requestId, byte operation, List<String> products, int dayOffset) {
+        Protocol.Request request = new Protocol.Request(requestId, operation);
         request.setParam("products", products);
         request.setParam("dayOffset", dayOffset);
-        return sendRequest(request);
+        return request;
+    }
+    
+    /**
+     Junta várias consultas num só pedido (OP_MULTI): o servidor corre-as em paralelo e
+     responde a todas num só frame, por isso um painel inteiro custa uma ida e volta.
+     */
+    public Multi multi() {
+        return new Multi();
+    }
+    
+    /**
+     Construtor de um OP_MULTI. Não é thread-safe; send() pode ser chamado mais de uma vez.
+     */
+    public final class Multi {
+        private final List<Protocol.Request> requests = new ArrayList<>();
+        
+        private Multi() {
+        }
+        
+        public Multi aggregateQuantity(String product, int days) {
+            return add(aggregation(requests.size(), Protocol.OP_QUANTITY_SOLD, product, days));
+        }
+        
+        public Multi aggregateVolume(String product, int days) {
+            return add(aggregation(requests.size(), Protocol.OP_SALES_VOLUME, product, days));
+        }
+        
+        public Multi aggregateAverage(String product, int days) {
+            return add(aggregation(requests.size(), Protocol.OP_AVERAGE_PRICE, product, days));
+        }
+        
+        public Multi aggregateMaxPrice(String product, int days) {
+            return add(aggregation(requests.size(), Protocol.OP_MAX_PRICE, product, days));
+        }
+        
+        public Multi filterEvents(List<String> products, int dayOffset) {
+            return add(filter(requests.size(), Protocol.OP_FILTER_EVENTS, products, dayOffset));
+        }
+        
+        public int size() {
+            return requests.size();
+        }
+        
+        private Multi add(Protocol.Request request) {
+            if (requests.size() >= Protocol.MAX_MULTI_REQUESTS) {
+                throw new IllegalStateException("Máximo de " + Protocol.MAX_MULTI_REQUESTS + " consultas por pedido");
+            }
+            requests.add(request);
+            return this;
+        }
+        
+        /**
+         Envia as consultas e devolve as respostas pela ordem em que foram acrescentadas.
+         Uma consulta que falhe só afeta a sua resposta; um erro do pedido todo é lançado como IOException.
+         */
+        public List<Protocol.Response> send() throws IOException {
+            Protocol.Request request = new Protocol.Request(0, Protocol.OP_MULTI);
+            request.setParam("requests", new ArrayList<>(requests));
+            Protocol.Response response = sendRequest(request);
+            if (!response.isSuccess()) {
+                throw new IOException(response.getErrorMessage());
+            }
+            return response.getResponseList("responses");
+        }
+    }
+    
+    /**
+     Filtro com a resposta em stream: os eventos chegam em partes e só STREAM_BUFFERED_PARTS partes
+     ficam em memória de cada vez, qualquer que seja o tamanho do resultado.
+     O stream deve ser percorrido até ao fim ou fechado (close) antes de esperar por outras respostas
+     desta conexão: enquanto a fila do stream estiver cheia, as outras respostas não são lidas.
+     */
+    public EventStream filterEventsStream(List<String> products, int dayOffset) throws IOException {
+        Protocol.Request request = filter(0, Protocol.OP_FILTER_EVENTS_STREAM, products, dayOffset);
+        return new EventStream(post(request, STREAM_BUFFERED_PARTS));
+    }
+    
+    /**
+     Eventos de uma resposta em stream, pela ordem do dia. Não é thread-safe.
+     Um erro do servidor ou da conexão a meio do stream é lançado como UncheckedIOException.
+     */
+    public final class EventStream implements Iterator<Protocol.Event>, AutoCloseable {
+        private final int tag;
+        private final Protocol.Encoding encoding;
+        private Iterator<Protocol.Event> part = Collections.emptyIterator();
+        private boolean ended;
+        
+        private EventStream(Posted posted) {
+            this.tag = posted.tag;
+            this.encoding = posted.encoding;
+        }
+        
+        @Override
+        public boolean hasNext() {
+            try {
+                while (!part.hasNext() && !ended) {
+                    fetch();
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return part.hasNext();
+        }
+        
+        @Override
+        public Protocol.Event next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return part.next();
+        }
+        
+        // Lê a próxima parte do Demultiplexer
+        private void fetch() throws IOException {
+            Protocol.Response response = demux.receivePart(tag, 
+                in -> Protocol.Response.readFrom(in, Protocol.OP_FILTER_EVENTS_STREAM, encoding));
+            if (response == null) {
+                ended = true;
+                return;
+            }
+            if (!response.isSuccess()) {
+                close();
+                throw new IOException(response.getErrorMessage());
+            }
+            List<Protocol.Event> events = response.getEventList("events");
+            if (events != null) {
+                part = events.iterator();
+            }
+        }
+        
+        // Descarta o resto do stream (as partes que ainda chegarem são ignoradas)
+        @Override
+        public void close() {
+            if (!ended) {
+                ended = true;
+                part = Collections.emptyIterator();
+                demux.cancel(tag);
+            }
+        }
     }
     
     public Protocol.Response simultaneousSales(String product1, String product2) throws IOException {
@@ -1,13 +1,22 @@
 package client;
 
+import geral.BufferPool;
+import geral.Protocol;
 import java.io.*;
 import java.net.Socket;
+import java.util.ArrayDeque;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
 //Demultiplexer para sincronização de múltiplas threads
+//Respostas em stream chegam em vários frames com a mesma tag (Protocol.FRAME_MORE) e ficam numa fila
+//limitada: com a fila cheia a thread de leitura espera pelo consumidor, e o servidor sente a pressão via TCP.
+//Enquanto isso as outras respostas desta conexão também esperam, por isso um stream deve ser consumido
+//(ou cancelado) sem ficar à espera de outros pedidos na mesma conexão.
+//Os frames recebidos vão para arrays do BufferPool e são descodificados no próprio array (Decoder),
+//que volta ao pool logo a seguir.
 
 public class Demultiplexer implements AutoCloseable {
     private final Socket socket;
@@ -35,28 +44,76 @@ public class Demultiplexer implements AutoCloseable {
         readerThread.start();
     }
 
+    // Descodifica um frame recebido; o array por baixo de in é reutilizado depois de decode() retornar
+    @FunctionalInterface
+    public interface Decoder<T> {
+        T decode(DataInputStream in) throws IOException;
+    }
+
     // Classe auxiliar para sincronização
     private static class Entry {
         final Condition cond;
         byte[] data;
+        int length;
 
         Entry(ReentrantLock lock) {
             this.cond = lock.newCondition();
         }
     }
 
+    // Parte de uma resposta em stream
+    private static class Part {
+        final byte[] data;
+        final int length;
+
+        Part(byte[] data, int length) {
+            this.data = data;
+            this.length = length;
+        }
+    }
+
+    // Resposta em stream: partes recebidas e ainda não consumidas
+    private static class StreamEntry extends Entry {
+        final Condition space;
+        final ArrayDeque<Part> parts = new ArrayDeque<>();
+        final int capacity;
+        boolean ended;     // Último frame recebido
+        boolean cancelled; // O consumidor desistiu: as partes seguintes são descartadas
+
+        StreamEntry(ReentrantLock lock, int capacity) {
+            super(lock);
+            this.space = lock.newCondition();
+            this.capacity = capacity;
+        }
+    }
+
 
-    public byte[] send(byte[] data) throws IOException {
+    public <T> T send(byte[] data, Decoder<T> decoder) throws IOException {
+        return receive(post(data, data.length), decoder);
+    }
+
+    // Envia o pedido (os primeiros length bytes de data) sem esperar pela resposta; devolve a tag
+    // a usar em receive(). Permite encadear pedidos (pipelining) na mesma conexão.
+    // O array pode ser reutilizado assim que post retornar.
+    public int post(byte[] data, int length) throws IOException {
+        return post(data, length, 0);
+    }
+
+    // Envia um pedido cuja resposta vem em stream; as partes são lidas com receivePart().
+    // No máximo capacity partes ficam guardadas à espera do consumidor.
+    public int postStream(byte[] data, int length, int capacity) throws IOException {
+        return post(data, length, Math.max(1, capacity));
+    }
+
+    private int post(byte[] data, int length, int streamCapacity) throws IOException {
         int tag;
-        Entry entry;
 
         // 1. Registar o pedido e obter uma Tag única
         mapLock.lock();
         try {
             if (exception != null) throw exception;
             tag = nextTag++;
-            entry = new Entry(mapLock);
-            pendingRequests.put(tag, entry);
+            pendingRequests.put(tag, streamCapacity > 0 ? new StreamEntry(mapLock, streamCapacity) : new Entry(mapLock));
         } finally {
             mapLock.unlock();
         }
@@ -65,28 +122,122 @@ public class Demultiplexer implements AutoCloseable {
         sendLock.lock();
         try {
             out.writeInt(tag);
-            out.writeInt(data.length);
-            out.write(data);
+            out.writeInt(length);
+            out.write(data, 0, length);
             out.flush();
+        } catch (IOException e) {
+            mapLock.lock();
+            try {
+                pendingRequests.remove(tag);
+            } finally {
+                mapLock.unlock();
+            }
+            throw e;
         } finally {
             sendLock.unlock();
         }
+        return tag;
+    }
 
-        // 3. Bloquear à espera da resposta específica (Demultiplexing)
+    // Bloqueia à espera da resposta a um pedido enviado com post() e descodifica-a
+    public <T> T receive(int tag, Decoder<T> decoder) throws IOException {
+        Entry entry;
         mapLock.lock();
         try {
+            entry = pendingRequests.get(tag);
+            if (entry == null) {
+                throw new IllegalStateException("Pedido desconhecido: " + tag);
+            }
             // Enquanto não houver dados e não houver erro, espera
             while (entry.data == null && exception == null) {
                 entry.cond.await();
             }
             
-            if (exception != null) throw exception;
-            return entry.data;
+            pendingRequests.remove(tag); // Limpeza
+            if (entry.data == null) throw exception;
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
+            pendingRequests.remove(tag);
             throw new IOException("Thread interrompida enquanto esperava resposta");
         } finally {
-            pendingRequests.remove(tag); // Limpeza
+            mapLock.unlock();
+        }
+        return decode(entry.data, entry.length, decoder);
+    }
+
+    // Descodifica fora do lock, diretamente do array recebido, e devolve-o ao pool
+    private static <T> T decode(byte[] data, int length, Decoder<T> decoder) throws IOException {
+        BufferPool.Input input = BufferPool.Input.local(data, length);
+        try {
+            return decoder.decode(input.data());
+        } finally {
+            input.clear();
+            BufferPool.release(data);
+        }
+    }
+
+    // Bloqueia à espera da próxima parte de um stream enviado com postStream() e descodifica-a;
+    // null no fim do stream
+    public <T> T receivePart(int tag, Decoder<T> decoder) throws IOException {
+        Part part;
+        mapLock.lock();
+        try {
+            Entry found = pendingRequests.get(tag);
+            if (!(found instanceof StreamEntry)) {
+                throw new IllegalStateException("Stream desconhecido: " + tag);
+            }
+            StreamEntry entry = (StreamEntry) found;
+            while (entry.parts.isEmpty() && !entry.ended && exception == null) {
+                entry.cond.await();
+            }
+            part = entry.parts.poll();
+            if (part != null) {
+                entry.space.signal();
+            } else if (entry.ended) {
+                pendingRequests.remove(tag);
+                return null;
+            } else {
+                pendingRequests.remove(tag);
+                throw exception;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Thread interrompida enquanto esperava resposta");
+        } finally {
+            mapLock.unlock();
+        }
+        return decode(part.data, part.length, decoder);
+    }
+
+    // Desiste de um stream: as partes guardadas e as que ainda chegarem são descartadas
+    public void cancel(int tag) {
+        mapLock.lock();
+        try {
+            Entry found = pendingRequests.get(tag);
+            if (found instanceof StreamEntry) {
+                StreamEntry entry = (StreamEntry) found;
+                entry.cancelled = true;
+                Part part;
+                while ((part = entry.parts.poll()) != null) {
+                    BufferPool.release(part.data);
+                }
+                entry.space.signal();
+                if (entry.ended) {
+                    pendingRequests.remove(tag);
+                }
+            }
+        } finally {
+            mapLock.unlock();
+        }
+    }
+
+    // Indica se a resposta a um pedido enviado com post() já chegou (ou a conexão falhou)
+    public boolean isAnswered(int tag) {
+        mapLock.lock();
+        try {
+            Entry entry = pendingRequests.get(tag);
+            return entry == null || entry.data != null || exception != null;
+        } finally {
             mapLock.unlock();
         }
     }
@@ -101,18 +252,25 @@ public class Demultiplexer implements AutoCloseable {
                 // Ler cabeçalho
                 int tag = in.readInt();
                 int len = in.readInt();
+                boolean more = (len & Protocol.FRAME_MORE) != 0;
+                len &= ~Protocol.FRAME_MORE;
                 
-                // Ler corpo da mensagem
-                byte[] data = new byte[len];
-                in.readFully(data);
+                // Ler corpo da mensagem para um array do pool (devolvido depois de descodificado)
+                byte[] data = BufferPool.acquire(len);
+                in.readFully(data, 0, len);
 
                 // Entregar a mensagem à thread correta
                 mapLock.lock();
                 try {
                     Entry entry = pendingRequests.get(tag);
-                    if (entry != null) {
+                    if (entry instanceof StreamEntry) {
+                        deliverPart((StreamEntry) entry, tag, data, len, more);
+                    } else if (entry != null) {
                         entry.data = data;
+                        entry.length = len;
                         entry.cond.signal(); // Acorda APENAS a thread que fez este pedido
+                    } else {
+                        BufferPool.release(data); // Ninguém à espera (pedido interrompido)
                     }
                 } finally {
                     mapLock.unlock();
@@ -133,6 +291,31 @@ public class Demultiplexer implements AutoCloseable {
         }
     }
 
+    // Chamado com o mapLock: espera por espaço na fila do stream (backpressure)
+    private void deliverPart(StreamEntry entry, int tag, byte[] data, int length, boolean more)
+            throws InterruptedIOException {
+        try {
+            while (entry.parts.size() >= entry.capacity && !entry.cancelled) {
+                entry.space.await();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Leitura interrompida");
+        }
+        if (!more) {
+            entry.ended = true;
+        }
+        if (entry.cancelled) {
+            BufferPool.release(data);
+            if (entry.ended) {
+                pendingRequests.remove(tag);
+            }
+            return;
+        }
+        entry.parts.add(new Part(data, length));
+        entry.cond.signal();
+    }
+
     @Override
     public void close() throws IOException {
         socket.close();
@@ -0,0 +1,229 @@
+package geral;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+//Pool de arrays de bytes para frames, partilhado por cliente e servidor.
+//Os arrays estão organizados por classes de tamanho (potências de 2, de 512 B a 1 MB), cada uma com
+//uma pilha limitada protegida pelo seu lock; um array que não cabe nas classes é alocado e descartado.
+//Em regime estável codificar e descodificar um frame não aloca arrays novos: quem recebe um array
+//com acquire() devolve-o com release() quando o frame já foi escrito ou lido.
+public final class BufferPool {
+    private static final int MIN_SHIFT = 9;  // 512 B
+    private static final int MAX_SHIFT = 20; // 1 MB
+    private static final int MAX_PER_CLASS = Integer.getInteger("buffers.perClass", 64);
+    private static final int SCRATCH_MAX = 64 * 1024;
+
+    private static final SizeClass[] CLASSES = new SizeClass[MAX_SHIFT - MIN_SHIFT + 1];
+    private static final LongAdder allocated = new LongAdder();
+    private static final LongAdder reused = new LongAdder();
+    private static final ThreadLocal<byte[]> scratch = new ThreadLocal<>();
+    private static final ThreadLocal<Output> localOutput = ThreadLocal.withInitial(Output::new);
+    private static final ThreadLocal<Input> localInput = ThreadLocal.withInitial(Input::new);
+
+    static {
+        for (int i = 0; i < CLASSES.length; i++) {
+            CLASSES[i] = new SizeClass();
+        }
+    }
+
+    private static final class SizeClass {
+        final ReentrantLock lock = new ReentrantLock();
+        final ArrayDeque<byte[]> free = new ArrayDeque<>();
+    }
+
+    private BufferPool() {
+    }
+
+    //Array com pelo menos minSize bytes (o tamanho real é a classe seguinte)
+    public static byte[] acquire(int minSize) {
+        if (minSize < 0) {
+            throw new IllegalArgumentException("Tamanho inválido: " + minSize);
+        }
+        int index = classIndex(minSize);
+        if (index < 0) {
+            allocated.increment();
+            return new byte[minSize]; // Maior do que a maior classe: fora do pool
+        }
+        SizeClass sizeClass = CLASSES[index];
+        sizeClass.lock.lock();
+        try {
+            byte[] array = sizeClass.free.pollLast();
+            if (array != null) {
+                reused.increment();
+                return array;
+            }
+        } finally {
+            sizeClass.lock.unlock();
+        }
+        allocated.increment();
+        return new byte[1 << (index + MIN_SHIFT)];
+    }
+
+    //Devolve um array ao pool. Arrays com tamanhos fora das classes (ou com a classe cheia) ficam para o GC.
+    public static void release(byte[] array) {
+        if (array == null || Integer.bitCount(array.length) != 1) {
+            return;
+        }
+        int index = Integer.numberOfTrailingZeros(array.length) - MIN_SHIFT;
+        if (index < 0 || index >= CLASSES.length) {
+            return;
+        }
+        SizeClass sizeClass = CLASSES[index];
+        sizeClass.lock.lock();
+        try {
+            if (sizeClass.free.size() < MAX_PER_CLASS) {
+                sizeClass.free.addLast(array);
+            }
+        } finally {
+            sizeClass.lock.unlock();
+        }
+    }
+
+    //Array temporário da thread, para copiar bytes que são logo convertidos (por exemplo, strings).
+    //Não pode ser guardado nem usado depois de outra chamada na mesma thread.
+    public static byte[] scratch(int minSize) {
+        if (minSize > SCRATCH_MAX) {
+            return new byte[minSize];
+        }
+        byte[] array = scratch.get();
+        if (array == null || array.length < minSize) {
+            array = new byte[Math.max(minSize, 256)];
+            scratch.set(array);
+        }
+        return array;
+    }
+
+    //Arrays criados (fora do pool ou com a classe vazia)
+    public static long getAllocatedCount() {
+        return allocated.sum();
+    }
+
+    //Arrays servidos a partir do pool
+    public static long getReusedCount() {
+        return reused.sum();
+    }
+
+    // -1 se minSize for maior do que a maior classe
+    private static int classIndex(int minSize) {
+        if (minSize <= 1 << MIN_SHIFT) {
+            return 0;
+        }
+        int shift = 32 - Integer.numberOfLeadingZeros(minSize - 1);
+        return shift > MAX_SHIFT ? -1 : shift - MIN_SHIFT;
+    }
+
+    // ==================== OUTPUT ====================
+
+    //Destino de codificação de um frame: escreve diretamente num array do pool, trocando-o por um
+    //maior quando enche. detach() entrega o array (e o tamanho escrito) a quem o vai enviar.
+    public static final class Output extends OutputStream {
+        private final DataOutputStream data = new DataOutputStream(this);
+        private byte[] buffer;
+        private int size;
+
+        //Output da thread atual, vazio; serve para codificar um frame de cada vez
+        public static Output local() {
+            Output output = localOutput.get();
+            output.reset();
+            return output;
+        }
+
+        public DataOutputStream data() {
+            return data;
+        }
+
+        @Override
+        public void write(int b) {
+            ensureCapacity(size + 1);
+            buffer[size++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            ensureCapacity(size + len);
+            System.arraycopy(b, off, buffer, size, len);
+            size += len;
+        }
+
+        public byte[] array() {
+            return buffer;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        //Recomeça do início, mantendo o array atual
+        public void reset() {
+            size = 0;
+        }
+
+        //Entrega o array (ficando o Output vazio e sem array); quem o recebe faz release()
+        public byte[] detach() {
+            byte[] array = buffer != null ? buffer : acquire(0);
+            buffer = null;
+            size = 0;
+            return array;
+        }
+
+        //Devolve o array ao pool
+        public void release() {
+            BufferPool.release(buffer);
+            buffer = null;
+            size = 0;
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (buffer == null) {
+                buffer = acquire(capacity);
+            } else if (capacity > buffer.length) {
+                byte[] bigger = acquire(Math.max(capacity, buffer.length * 2));
+                System.arraycopy(buffer, 0, bigger, 0, size);
+                BufferPool.release(buffer);
+                buffer = bigger;
+            }
+        }
+    }
+
+    // ==================== INPUT ====================
+
+    //Leitura de um frame diretamente do array onde foi recebido (sem cópia).
+    public static final class Input extends ByteArrayInputStream {
+        private static final byte[] EMPTY = new byte[0];
+
+        private final DataInputStream data = new DataInputStream(this);
+
+        public Input() {
+            super(EMPTY);
+        }
+
+        //Input da thread atual, já a apontar para os primeiros length bytes de array
+        public static Input local(byte[] array, int length) {
+            Input input = localInput.get();
+            input.reset(array, length);
+            return input;
+        }
+
+        public void reset(byte[] array, int length) {
+            this.buf = array;
+            this.pos = 0;
+            this.count = length;
+            this.mark = 0;
+        }
+
+        //Deixa de referenciar o array (que pode voltar ao pool)
+        public void clear() {
+            reset(EMPTY, 0);
+        }
+
+        public DataInputStream data() {
+            return data;
+        }
+    }
+}
@@ -23,6 +23,24 @@ public class Protocol {
     public static final byte OP_SIMULTANEOUS_SALES = 0x0A;
     public static final byte OP_CONSECUTIVE_SALES = 0x0B;
     public static final byte OP_NEW_DAY = 0x0C;
+    public static final byte OP_RESUME = 0x0D; // Retomar uma sessão com o token recebido no login
+    public static final byte OP_HELLO = 0x0E;  // Negociar a codificação da conexão (ver Encoding)
+    public static final byte OP_FILTER_EVENTS_STREAM = 0x0F; // Como OP_FILTER_EVENTS, com a resposta em partes
+    public static final byte OP_MULTI = 0x10;  // Várias consultas num só frame, respondidas num só frame
+
+    public static final int MAX_MULTI_REQUESTS = 64; // Sub-pedidos num OP_MULTI
+
+    // ==================== FRAMES ====================
+
+    // Bit mais alto do tamanho de um frame [tag][tamanho][dados]: seguem-se mais frames com a mesma tag.
+    // Só as respostas em stream o usam; o último frame (sem o bit) marca o fim.
+    public static final int FRAME_MORE = 0x80000000;
+
+    // ==================== CODIFICAÇÕES (OP_HELLO) ====================
+
+    public static final int FEATURE_COMPACT = 0x01;     // Varints para inteiros, comprimentos e índices
+    public static final int FEATURE_PRICE_CENTS = 0x02; // Preços em cêntimos (requer FEATURE_COMPACT)
+    public static final int FEATURE_PRODUCT_DICT = 0x04; // Dicionário de produtos da conexão (requer FEATURE_COMPACT)
 
     // ==================== CÓDIGOS DE STATUS ====================
 
@@ -33,6 +51,213 @@ public class Protocol {
     public static final byte STATUS_USER_EXISTS = 0x04;
     public static final byte STATUS_INVALID_PARAMS = 0x05;
 
+    // ==================== CLASSE ENCODING ====================
+
+    //Codificação dos campos de uma conexão, negociada com OP_HELLO logo a seguir a ligar.
+    //LEGACY (por omissão) usa inteiros de 4 bytes e doubles de 8; a compacta usa varints zigzag
+    //para inteiros, comprimentos e índices e, opcionalmente, preços em cêntimos.
+    //Os booleanos e os bytes de operação/status são iguais nas duas.
+    //Com FEATURE_PRODUCT_DICT cada Encoding tem o seu ProductDictionary, por isso pertence a uma só conexão.
+    public static final class Encoding {
+        public static final Encoding LEGACY = new Encoding(0);
+
+        // Marca de preço que não cabe em cêntimos: segue-se o double completo
+        private static final long PRICE_NOT_CENTS = 1;
+
+        private final int features;
+        private final boolean compact;
+        private final boolean cents;
+        private final ProductDictionary products; // null = produtos enviados como strings
+
+        private Encoding(int features) {
+            this.features = features;
+            this.compact = (features & FEATURE_COMPACT) != 0;
+            this.cents = compact && (features & FEATURE_PRICE_CENTS) != 0;
+            this.products = compact && (features & FEATURE_PRODUCT_DICT) != 0 ? new ProductDictionary() : null;
+        }
+
+        public static Encoding of(int features) {
+            return features == 0 ? LEGACY : new Encoding(features);
+        }
+
+        public int getFeatures() {
+            return features;
+        }
+
+        public boolean isCompact() {
+            return compact;
+        }
+
+        public void writeInt(DataOutputStream out, int value) throws IOException {
+            if (compact) {
+                Serializer.writeVarInt(out, Serializer.zigzag(value));
+            } else {
+                out.writeInt(value);
+            }
+        }
+
+        public int readInt(DataInputStream in) throws IOException {
+            return compact ? Serializer.unzigzag(Serializer.readVarInt(in)) : in.readInt();
+        }
+
+        // Índice num dicionário (nunca negativo)
+        public void writeIndex(DataOutputStream out, int index) throws IOException {
+            if (compact) {
+                Serializer.writeVarInt(out, index);
+            } else {
+                out.writeShort(index);
+            }
+        }
+
+        public int readIndex(DataInputStream in) throws IOException {
+            return compact ? Serializer.readVarInt(in) : in.readShort();
+        }
+
+        // Em cêntimos: varint de (cêntimos zigzag << 1); caso contrário a marca 1 e o double
+        public void writePrice(DataOutputStream out, double price) throws IOException {
+            if (!cents) {
+                out.writeDouble(price);
+                return;
+            }
+            long value = Math.round(price * 100);
+            if (Math.abs(price) < 1e13 && Double.compare(value / 100.0, price) == 0) {
+                Serializer.writeVarLong(out, Serializer.zigzag(value) << 1);
+            } else {
+                Serializer.writeVarLong(out, PRICE_NOT_CENTS);
+                out.writeDouble(price);
+            }
+        }
+
+        public double readPrice(DataInputStream in) throws IOException {
+            if (!cents) {
+                return in.readDouble();
+            }
+            long value = Serializer.readVarLong(in);
+            if (value == PRICE_NOT_CENTS) {
+                return in.readDouble();
+            }
+            return Serializer.unzigzag(value >>> 1) / 100.0;
+        }
+
+        public void writeString(DataOutputStream out, String str) throws IOException {
+            if (!compact) {
+                Serializer.writeString(out, str);
+                return;
+            }
+            if (str == null) {
+                writeInt(out, -1);
+                return;
+            }
+            byte[] bytes = str.getBytes("UTF-8");
+            writeInt(out, bytes.length);
+            out.write(bytes);
+        }
+
+        public String readString(DataInputStream in) throws IOException {
+            if (!compact) {
+                return Serializer.readString(in);
+            }
+            int length = readInt(in);
+            if (length == -1) {
+                return null;
+            }
+            byte[] bytes = BufferPool.scratch(length);
+            in.readFully(bytes, 0, length);
+            return new String(bytes, 0, length, "UTF-8");
+        }
+
+        // Nome de produto num pedido: pelo dicionário da conexão, se negociado
+        public void writeProduct(DataOutputStream out, String product) throws IOException {
+            if (products == null) {
+                writeString(out, product);
+            } else {
+                products.write(this, out, product);
+            }
+        }
+
+        public String readProduct(DataInputStream in) throws IOException {
+            return products == null ? readString(in) : products.read(this, in);
+        }
+
+        public void writeProductList(DataOutputStream out, List<String> list) throws IOException {
+            if (list == null) {
+                writeInt(out, -1);
+                return;
+            }
+            writeInt(out, list.size());
+            for (String product : list) {
+                writeProduct(out, product);
+            }
+        }
+
+        public List<String> readProductList(DataInputStream in) throws IOException {
+            int count = readInt(in);
+            if (count == -1) {
+                return null;
+            }
+            List<String> list = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                list.add(readProduct(in));
+            }
+            return list;
+        }
+    }
+
+    // ==================== CLASSE PRODUCTDICTIONARY ====================
+
+    //Dicionário de produtos de uma conexão (cliente -> servidor), construído pelos próprios pedidos:
+    //a primeira vez que um produto é enviado segue a string e ambos os lados lhe atribuem o id seguinte;
+    //daí em diante segue só o id (um varint de 1 byte para os primeiros 126 produtos).
+    //Referência (varint): 0 = string sem entrada no dicionário (cheio), 1 = nova entrada + string,
+    //n >= 2 = id n - 2.
+    //Os ids dependem da ordem dos pedidos, por isso o cliente tem de serializar e enviar cada pedido
+    //sob o mesmo lock, e o servidor lê-os todos na thread de leitura. Não é thread-safe.
+    //No servidor cada id resolve para a String lida na definição: pedidos seguintes não alocam nada.
+    public static final class ProductDictionary {
+        public static final int MAX_PRODUCTS = 4096;
+
+        private static final int REF_INLINE = 0;
+        private static final int REF_DEFINE = 1;
+        private static final int REF_FIRST_ID = 2;
+
+        private final Map<String, Integer> ids = new HashMap<>(); // Lado que escreve
+        private final List<String> names = new ArrayList<>();     // Lado que lê
+
+        private void write(Encoding enc, DataOutputStream out, String product) throws IOException {
+            Integer id = product == null ? null : ids.get(product);
+            if (id != null) {
+                Serializer.writeVarInt(out, id + REF_FIRST_ID);
+            } else if (product != null && ids.size() < MAX_PRODUCTS) {
+                ids.put(product, ids.size());
+                Serializer.writeVarInt(out, REF_DEFINE);
+                enc.writeString(out, product);
+            } else {
+                Serializer.writeVarInt(out, REF_INLINE);
+                enc.writeString(out, product);
+            }
+        }
+
+        private String read(Encoding enc, DataInputStream in) throws IOException {
+            int ref = Serializer.readVarInt(in);
+            if (ref == REF_INLINE) {
+                return enc.readString(in);
+            }
+            if (ref == REF_DEFINE) {
+                String product = enc.readString(in);
+                if (product == null || names.size() >= MAX_PRODUCTS) {
+                    throw new IOException("Definição de produto inválida");
+                }
+                names.add(product);
+                return product;
+            }
+            int id = ref - REF_FIRST_ID;
+            if (id < 0 || id >= names.size()) {
+                throw new IOException("Id de produto desconhecido: " + id);
+            }
+            return names.get(id);
+        }
+    }
+
     // ==================== CLASSE REQUEST ====================
 
     public static class Request {
@@ -75,44 +300,70 @@ public class Protocol {
             return (List<String>) params.get(key);
         }
 
+        @SuppressWarnings("unchecked") // Só OP_MULTI guarda estas listas (ver readFrom)
+        public List<Request> getRequestList(String key) {
+            return (List<Request>) params.get(key);
+        }
+
         // CLIENTE usa isto para enviar
         public void writeTo(DataOutputStream out) throws IOException {
-            out.writeInt(requestId);
+            writeTo(out, Encoding.LEGACY);
+        }
+
+        public void writeTo(DataOutputStream out, Encoding enc) throws IOException {
+            enc.writeInt(out, requestId);
             out.writeByte(operation);
 
             switch (operation) {
                 case OP_REGISTER:
                 case OP_LOGIN:
-                    Serializer.writeString(out, getString("username"));
-                    Serializer.writeString(out, getString("password"));
+                    enc.writeString(out, getString("username"));
+                    enc.writeString(out, getString("password"));
                     break;
 
                 case OP_ADD_EVENT:
-                    Serializer.writeString(out, getString("product"));
-                    out.writeInt(getInt("quantity"));
-                    out.writeDouble(getDouble("price"));
+                    enc.writeProduct(out, getString("product"));
+                    enc.writeInt(out, getInt("quantity"));
+                    enc.writePrice(out, getDouble("price"));
                     break;
 
                 case OP_QUANTITY_SOLD:
                 case OP_SALES_VOLUME:
                 case OP_AVERAGE_PRICE:
                 case OP_MAX_PRICE:
-                    Serializer.writeString(out, getString("product"));
-                    out.writeInt(getInt("days"));
+                    enc.writeProduct(out, getString("product"));
+                    enc.writeInt(out, getInt("days"));
                     break;
 
                 case OP_FILTER_EVENTS:
-                    Serializer.writeStringList(out, getStringList("products"));
-                    out.writeInt(getInt("dayOffset"));
+                case OP_FILTER_EVENTS_STREAM:
+                    enc.writeProductList(out, getStringList("products"));
+                    enc.writeInt(out, getInt("dayOffset"));
                     break;
 
                 case OP_SIMULTANEOUS_SALES:
-                    Serializer.writeString(out, getString("product1"));
-                    Serializer.writeString(out, getString("product2"));
+                    enc.writeProduct(out, getString("product1"));
+                    enc.writeProduct(out, getString("product2"));
                     break;
 
                 case OP_CONSECUTIVE_SALES:
-                    out.writeInt(getInt("n"));
+                    enc.writeInt(out, getInt("n"));
+                    break;
+
+                case OP_RESUME:
+                    enc.writeString(out, getString("token"));
+                    break;
+
+                case OP_HELLO:
+                    enc.writeInt(out, getInt("features"));
+                    break;
+
+                case OP_MULTI:
+                    List<Request> requests = getRequestList("requests");
+                    enc.writeInt(out, requests.size());
+                    for (Request sub : requests) {
+                        sub.writeTo(out, enc);
+                    }
                     break;
 
                 case OP_LOGOUT:
@@ -124,43 +375,72 @@ public class Protocol {
 
         // SERVIDOR usa isto para receber
         public static Request readFrom(DataInputStream in) throws IOException {
-            int requestId = in.readInt();
+            return readFrom(in, Encoding.LEGACY);
+        }
+
+        public static Request readFrom(DataInputStream in, Encoding enc) throws IOException {
+            int requestId = enc.readInt(in);
             byte operation = in.readByte();
             Request req = new Request(requestId, operation);
 
             switch (operation) {
                 case OP_REGISTER:
                 case OP_LOGIN:
-                    req.setParam("username", Serializer.readString(in));
-                    req.setParam("password", Serializer.readString(in));
+                    req.setParam("username", enc.readString(in));
+                    req.setParam("password", enc.readString(in));
                     break;
 
                 case OP_ADD_EVENT:
-                    req.setParam("product", Serializer.readString(in));
-                    req.setParam("quantity", in.readInt());
-                    req.setParam("price", in.readDouble());
+                    req.setParam("product", enc.readProduct(in));
+                    req.setParam("quantity", enc.readInt(in));
+                    req.setParam("price", enc.readPrice(in));
                     break;
 
                 case OP_QUANTITY_SOLD:
                 case OP_SALES_VOLUME:
                 case OP_AVERAGE_PRICE:
                 case OP_MAX_PRICE:
-                    req.setParam("product", Serializer.readString(in));
-                    req.setParam("days", in.readInt());
+                    req.setParam("product", enc.readProduct(in));
+                    req.setParam("days", enc.readInt(in));
                     break;
 
                 case OP_FILTER_EVENTS:
-                    req.setParam("products", Serializer.readStringList(in));
-                    req.setParam("dayOffset", in.readInt());
+                case OP_FILTER_EVENTS_STREAM:
+                    req.setParam("products", enc.readProductList(in));
+                    req.setParam("dayOffset", enc.readInt(in));
                     break;
 
                 case OP_SIMULTANEOUS_SALES:
-                    req.setParam("product1", Serializer.readString(in));
-                    req.setParam("product2", Serializer.readString(in));
+                    req.setParam("product1", enc.readProduct(in));
+                    req.setParam("product2", enc.readProduct(in));
                     break;
 
                 case OP_CONSECUTIVE_SALES:
-                    req.setParam("n", in.readInt());
+                    req.setParam("n", enc.readInt(in));
+                    break;
+
+                case OP_RESUME:
+                    req.setParam("token", enc.readString(in));
+                    break;
+
+                case OP_HELLO:
+                    req.setParam("features", enc.readInt(in));
+                    break;
+
+                case OP_MULTI:
+                    int count = enc.readInt(in);
+                    if (count < 0 || count > MAX_MULTI_REQUESTS) {
+                        throw new IOException("Número de sub-pedidos inválido: " + count);
+                    }
+                    List<Request> requests = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) {
+                        Request sub = readFrom(in, enc);
+                        if (sub.getOperation() == OP_MULTI) {
+                            throw new IOException("OP_MULTI encadeado");
+                        }
+                        requests.add(sub);
+                    }
+                    req.setParam("requests", requests);
                     break;
 
                 case OP_LOGOUT:
@@ -230,27 +510,56 @@ public class Protocol {
             return (List<Event>) data.get(key);
         }
 
+        @SuppressWarnings("unchecked") // Só OP_MULTI guarda estas listas (ver readFrom)
+        public List<Response> getResponseList(String key) {
+            return (List<Response>) data.get(key);
+        }
+
+        // Resposta a um OP_MULTI: uma resposta por sub-pedido, pela mesma ordem
+        public static Response multi(int requestId, List<Request> requests, List<Response> responses) {
+            byte[] operations = new byte[requests.size()];
+            for (int i = 0; i < operations.length; i++) {
+                operations[i] = requests.get(i).getOperation();
+            }
+            return success(requestId).setData("operations", operations).setData("responses", responses);
+        }
+
         // SERVIDOR usa isto para enviar
         public void writeTo(DataOutputStream out, byte operation) throws IOException {
-            out.writeInt(requestId);
+            writeTo(out, operation, Encoding.LEGACY);
+        }
+
+        public void writeTo(DataOutputStream out, byte operation, Encoding enc) throws IOException {
+            enc.writeInt(out, requestId);
             out.writeByte(status);
 
             if (status != STATUS_OK) {
-                Serializer.writeString(out, errorMessage);
+                enc.writeString(out, errorMessage);
                 return;
             }
 
             switch (operation) {
                 case OP_REGISTER:
-                case OP_LOGIN:
                 case OP_LOGOUT:
                 case OP_ADD_EVENT:
                 case OP_NEW_DAY:
                     // Sem dados adicionais
                     break;
 
+                case OP_LOGIN:
+                    enc.writeString(out, getString("token"));
+                    break;
+
+                case OP_RESUME:
+                    enc.writeString(out, getString("username"));
+                    break;
+
+                case OP_HELLO:
+                    enc.writeInt(out, getInt("features"));
+                    break;
+
                 case OP_QUANTITY_SOLD:
-                    out.writeInt(getInt("quantity"));
+                    enc.writeInt(out, getInt("quantity"));
                     break;
 
                 case OP_SALES_VOLUME:
@@ -262,7 +571,7 @@ public class Protocol {
                     break;
 
                 case OP_MAX_PRICE:
-                    out.writeDouble(getDouble("maxPrice"));
+                    enc.writePrice(out, getDouble("maxPrice"));
                     break;
 
                 case OP_SIMULTANEOUS_SALES:
@@ -270,38 +579,65 @@ public class Protocol {
                     break;
 
                 case OP_CONSECUTIVE_SALES:
-                    Serializer.writeString(out, getString("product"));
+                    enc.writeString(out, getString("product"));
                     break;
 
                 case OP_FILTER_EVENTS:
-                    writeEventList(out, getEventList("events"));
+                case OP_FILTER_EVENTS_STREAM: // Cada frame leva uma parte dos eventos
+                    writeEventList(out, getEventList("events"), enc);
+                    break;
+
+                case OP_MULTI:
+                    // Cada sub-resposta leva a sua operação, para poder ser lida sem o pedido
+                    byte[] operations = (byte[]) data.get("operations");
+                    List<Response> responses = getResponseList("responses");
+                    enc.writeInt(out, responses.size());
+                    for (int i = 0; i < operations.length; i++) {
+                        out.writeByte(operations[i]);
+                        responses.get(i).writeTo(out, operations[i], enc);
+                    }
                     break;
             }
         }
 
         // CLIENTE usa isto para receber
         public static Response readFrom(DataInputStream in, byte operation) throws IOException {
-            int requestId = in.readInt();
+            return readFrom(in, operation, Encoding.LEGACY);
+        }
+
+        public static Response readFrom(DataInputStream in, byte operation, Encoding enc) throws IOException {
+            int requestId = enc.readInt(in);
             byte status = in.readByte();
 
             Response res = new Response(requestId, status);
 
             if (status != STATUS_OK) {
-                res.errorMessage = Serializer.readString(in);
+                res.errorMessage = enc.readString(in);
                 return res;
             }
 
             switch (operation) {
                 case OP_REGISTER:
-                case OP_LOGIN:
                 case OP_LOGOUT:
                 case OP_ADD_EVENT:
                 case OP_NEW_DAY:
                     // Sem dados adicionais
                     break;
 
+                case OP_LOGIN:
+                    res.data.put("token", enc.readString(in));
+                    break;
+
+                case OP_RESUME:
+                    res.data.put("username", enc.readString(in));
+                    break;
+
+                case OP_HELLO:
+                    res.data.put("features", enc.readInt(in));
+                    break;
+
                 case OP_QUANTITY_SOLD:
-                    res.data.put("quantity", in.readInt());
+                    res.data.put("quantity", enc.readInt(in));
                     break;
 
                 case OP_SALES_VOLUME:
@@ -313,7 +649,7 @@ public class Protocol {
                     break;
 
                 case OP_MAX_PRICE:
-                    res.data.put("maxPrice", in.readDouble());
+                    res.data.put("maxPrice", enc.readPrice(in));
                     break;
 
                 case OP_SIMULTANEOUS_SALES:
@@ -321,11 +657,30 @@ public class Protocol {
                     break;
 
                 case OP_CONSECUTIVE_SALES:
-                    res.data.put("product", Serializer.readString(in));
+                    res.data.put("product", enc.readString(in));
                     break;
 
                 case OP_FILTER_EVENTS:
-                    res.data.put("events", readEventList(in));
+                case OP_FILTER_EVENTS_STREAM:
+                    res.data.put("events", readEventList(in, enc));
+                    break;
+
+                case OP_MULTI:
+                    int count = enc.readInt(in);
+                    if (count < 0 || count > MAX_MULTI_REQUESTS) {
+                        throw new IOException("Número de sub-respostas inválido: " + count);
+                    }
+                    byte[] operations = new byte[count];
+                    List<Response> responses = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) {
+                        operations[i] = in.readByte();
+                        if (operations[i] == OP_MULTI) {
+                            throw new IOException("OP_MULTI encadeado");
+                        }
+                        responses.add(readFrom(in, operations[i], enc));
+                    }
+                    res.data.put("operations", operations);
+                    res.data.put("responses", responses);
                     break;
             }
 
@@ -333,9 +688,9 @@ public class Protocol {
         }
 
         // Serialização eficiente de eventos com dicionário
-        private static void writeEventList(DataOutputStream out, List<Event> events) throws IOException {
+        private static void writeEventList(DataOutputStream out, List<Event> events, Encoding enc) throws IOException {
             if (events == null) {
-                out.writeInt(-1);
+                enc.writeInt(out, -1);
                 return;
             }
 
@@ -349,37 +704,40 @@ public class Protocol {
                 }
             }
 
-            out.writeInt(uniqueProducts.size());
+            enc.writeInt(out, uniqueProducts.size());
             for (String product : uniqueProducts) {
-                Serializer.writeString(out, product);
+                enc.writeString(out, product);
             }
 
-            out.writeInt(events.size());
+            // Timestamps em delta-of-delta + varint (eventos seguidos têm instantes próximos)
+            Serializer.TimestampCodec timestamps = new Serializer.TimestampCodec();
+            enc.writeInt(out, events.size());
             for (Event event : events) {
-                out.writeShort(productDict.get(event.getProduct()));
-                out.writeInt(event.getQuantity());
-                out.writeDouble(event.getPrice());
-                out.writeLong(event.getTimestamp());
+                enc.writeIndex(out, productDict.get(event.getProduct()));
+                enc.writeInt(out, event.getQuantity());
+                enc.writePrice(out, event.getPrice());
+                timestamps.write(out, event.getTimestamp());
             }
         }
 
-        private static List<Event> readEventList(DataInputStream in) throws IOException {
-            int dictSize = in.readInt();
+        private static List<Event> readEventList(DataInputStream in, Encoding enc) throws IOException {
+            int dictSize = enc.readInt(in);
             if (dictSize == -1) return null;
 
             String[] productDict = new String[dictSize];
             for (int i = 0; i < dictSize; i++) {
-                productDict[i] = Serializer.readString(in);
+                productDict[i] = enc.readString(in);
             }
 
-            int count = in.readInt();
+            Serializer.TimestampCodec timestamps = new Serializer.TimestampCodec();
+            int count = enc.readInt(in);
             List<Event> events = new ArrayList<>(count);
             for (int i = 0; i < count; i++) {
-                short productIndex = in.readShort();
+                int productIndex = enc.readIndex(in);
                 String product = productDict[productIndex];
-                int quantity = in.readInt();
-                double price = in.readDouble();
-                long timestamp = in.readLong();
+                int quantity = enc.readInt(in);
+                double price = enc.readPrice(in);
+                long timestamp = timestamps.read(in);
                 events.add(new Event(product, quantity, price, timestamp));
             }
 
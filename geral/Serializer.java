@@ -1,6 +1,7 @@
 package geral;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 public class Serializer {
@@ -36,9 +37,9 @@ public class Serializer {
         if (length == -1) {
             return null;
         }
-        byte[] bytes = new byte[length];
-        in.readFully(bytes);
-        return new String(bytes, "UTF-8");
+        byte[] bytes = BufferPool.scratch(length);
+        in.readFully(bytes, 0, length);
+        return new String(bytes, 0, length, "UTF-8");
     }
 
     public static List<String> readStringList(DataInputStream in) throws IOException {
@@ -57,4 +58,144 @@ public class Serializer {
     public static boolean readBoolean(DataInputStream in) throws IOException {
         return in.readByte() == 1;
     }
-}
\ No newline at end of file
+
+    // ==================== VARINTS ====================
+    // Inteiros em base 128 (7 bits por byte, bit mais alto = continua).
+    // Valores com sinal passam primeiro por zigzag para que números pequenos negativos também ocupem pouco.
+
+    public static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    public static int unzigzag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    public static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    public static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    public static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    public static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    public static int readVarInt(DataInputStream in) throws IOException {
+        int result = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            result |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IOException("VarInt demasiado longo");
+    }
+
+    public static long readVarLong(DataInputStream in) throws IOException {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            result |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IOException("VarLong demasiado longo");
+    }
+
+    public static int readVarInt(ByteBuffer in) {
+        int result = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.get() & 0xFF;
+            result |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IllegalStateException("VarInt demasiado longo");
+    }
+
+    public static long readVarLong(ByteBuffer in) {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.get() & 0xFF;
+            result |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IllegalStateException("VarLong demasiado longo");
+    }
+
+    // ==================== TIMESTAMPS (delta-of-delta) ====================
+
+    //Codificador de uma sequência de timestamps: o 1º vai inteiro, o 2º como diferença e os seguintes
+    //como diferença entre diferenças consecutivas (quase sempre 0 ou perto disso), tudo em varint zigzag.
+    //Usar uma instância por sequência (ficheiro, bloco ou mensagem) de cada lado.
+    public static class TimestampCodec {
+        private long previous = 0;
+        private long previousDelta = 0;
+        private int count = 0;
+
+        public void write(DataOutputStream out, long timestamp) throws IOException {
+            writeVarLong(out, zigzag(next(timestamp)));
+        }
+
+        public long read(DataInputStream in) throws IOException {
+            return restore(unzigzag(readVarLong(in)));
+        }
+
+        public long read(ByteBuffer in) {
+            return restore(unzigzag(readVarLong(in)));
+        }
+
+        // Valor a escrever para o próximo timestamp
+        private long next(long timestamp) {
+            long encoded;
+            long delta = timestamp - previous;
+            if (count == 0) {
+                encoded = timestamp;
+            } else if (count == 1) {
+                encoded = delta;
+            } else {
+                encoded = delta - previousDelta;
+            }
+            previousDelta = count == 0 ? 0 : delta;
+            previous = timestamp;
+            count++;
+            return encoded;
+        }
+
+        // Timestamp a partir do valor lido
+        private long restore(long encoded) {
+            long timestamp;
+            if (count == 0) {
+                timestamp = encoded;
+            } else if (count == 1) {
+                timestamp = previous + encoded;
+            } else {
+                timestamp = previous + previousDelta + encoded;
+            }
+            previousDelta = count == 0 ? 0 : timestamp - previous;
+            previous = timestamp;
+            count++;
+            return timestamp;
+        }
+    }
+}
@@ -1,8 +1,5 @@
 package server;
 
-import geral.Protocol.Event;
-import java.util.List;
-
 /*
 Serviço de agregações lazy COM caching.
 Calcula agregações sob demanda e guarda resultados.
@@ -27,10 +24,18 @@ public class AggregationService {
         this.cache = new Cache<>();
     }
 
+    public long getCacheHitCount() {
+        return cache.getHitCount();
+    }
+
+    public long getCacheMissCount() {
+        return cache.getMissCount();
+    }
+
     // Invalida a cache quando necessário (por ex: novo dia)
     public void invalidateCache() {
         cache.clear();
-        System.out.println("Cache de agregação limpa");
+        Log.info("Cache de agregação limpa");
     }
 
     //Agrega quantidade total vendida de um produto nos últimos N dias.
@@ -42,7 +47,9 @@ public class AggregationService {
         // Check cache
         Integer cached = (Integer) cache.get(product, days, "QTY");
         if (cached != null) {
-            System.out.println("Cache hit para QTY " + product + " " + days);
+            if (Log.isEnabled(Log.Level.DEBUG)) {
+                Log.debug("Cache hit para QTY " + product + " " + days);
+            }
             return new AggregationResult<>(cached, null);
         }
         
@@ -59,13 +66,8 @@ public class AggregationService {
         int total = 0;
         
         for (int i = 0; i < diasParaCalcular; i++) {
-            List<Event> dayEvents = tsManager.getHistoricalDayEvents(i);
-            for (Event event : dayEvents) {
-                if (event.getProduct().equals(product)) {
-                    total += event.getQuantity();
-                }
-            }
-            // A lista dayEvents sai de escopo aqui e pode ser Garbage Collected
+            // Resumo do produto no dia (dias em disco respondem pelo footer, sem ler eventos)
+            total += (int) tsManager.getProductSummary(i, product).quantity;
         }
         
         if (availableDays >= days) {
@@ -82,7 +84,9 @@ public class AggregationService {
         // Check cache
         Double cached = (Double) cache.get(product, days, "VOL");
         if (cached != null) {
-            System.out.println("Cache hit para VOL " + product + " " + days);
+            if (Log.isEnabled(Log.Level.DEBUG)) {
+                Log.debug("Cache hit para VOL " + product + " " + days);
+            }
             return new AggregationResult<>(cached, null);
         }
         
@@ -99,12 +103,7 @@ public class AggregationService {
         double total = 0;
         
         for (int i = 0; i < diasParaCalcular; i++) {
-            List<Event> dayEvents = tsManager.getHistoricalDayEvents(i);
-            for (Event event : dayEvents) {
-                if (event.getProduct().equals(product)) {
-                    total += event.getQuantity() * event.getPrice();
-                }
-            }
+            total += tsManager.getProductSummary(i, product).volume;
         }
         
         if (availableDays >= days) {
@@ -121,7 +120,9 @@ public class AggregationService {
         // Check cache
         Double cached = (Double) cache.get(product, days, "AVG");
         if (cached != null) {
-            System.out.println("Cache hit para AVG " + product + " " + days);
+            if (Log.isEnabled(Log.Level.DEBUG)) {
+                Log.debug("Cache hit para AVG " + product + " " + days);
+            }
             return new AggregationResult<>(cached, null);
         }
         
@@ -136,16 +137,12 @@ public class AggregationService {
         // Calcular agregação iterativa
         int diasParaCalcular = Math.min(days, availableDays);
         double totalVolume = 0;
-        int totalQuantity = 0;
+        long totalQuantity = 0;
 
         for (int i = 0; i < diasParaCalcular; i++) {
-            List<Event> dayEvents = tsManager.getHistoricalDayEvents(i);
-            for (Event event : dayEvents) {
-                if (event.getProduct().equals(product)) {
-                    totalVolume += event.getQuantity() * event.getPrice();
-                    totalQuantity += event.getQuantity();
-                }
-            }
+            ProductSummary summary = tsManager.getProductSummary(i, product);
+            totalVolume += summary.volume;
+            totalQuantity += summary.quantity;
         }
 
         double avgPrice = (totalQuantity == 0) ? 0.0 : (totalVolume / totalQuantity);
@@ -164,7 +161,9 @@ public class AggregationService {
         // Check cache
         Double cached = (Double) cache.get(product, days, "MAX");
         if (cached != null) {
-            System.out.println("Cache hit para MAX " + product + " " + days);
+            if (Log.isEnabled(Log.Level.DEBUG)) {
+                Log.debug("Cache hit para MAX " + product + " " + days);
+            }
             return new AggregationResult<>(cached, null);
         }
 
@@ -182,12 +181,10 @@ public class AggregationService {
         boolean foundProduct = false;
 
         for (int i = 0; i < diasParaCalcular; i++) {
-            List<Event> dayEvents = tsManager.getHistoricalDayEvents(i);
-            for (Event event : dayEvents) {
-                if (event.getProduct().equals(product)) {
-                    maxPrice = Math.max(maxPrice, event.getPrice());
-                    foundProduct = true;
-                }
+            ProductSummary summary = tsManager.getProductSummary(i, product);
+            if (summary.count > 0) {
+                maxPrice = Math.max(maxPrice, summary.maxPrice);
+                foundProduct = true;
             }
         }
         
@@ -1,22 +1,65 @@
 package server;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Base64;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import server.persistence.UserPersistence;
 
-// Gestor de autenticação de utilizadores
+// Gestor de autenticação de utilizadores.
+// Sem lock global: o registo usa putIfAbsent e as consultas são leituras simples do ConcurrentHashMap,
+// por isso logins em simultâneo (abertura das lojas) não se bloqueiam uns aos outros.
+// O PBKDF2 (registo e login) corre num executor próprio e limitado: com a fila cheia o pedido é recusado
+// de imediato, em vez de ocupar a pool de pedidos e atrasar as agregações.
+// Verificações bem sucedidas ficam em cache por pouco tempo, para reconexões com as mesmas credenciais
+// não voltarem a pagar o PBKDF2.
 public class Authentication {
-    private final Map<String, User> users;
-    private final ReentrantReadWriteLock lock;
-    
+    private static final int MAX_CACHED_VERIFICATIONS = 10_000;
+
+    // Comparado quando o utilizador não existe, para a resposta demorar o mesmo que com password errada
+    private static final User NO_USER = User.withPassword("", "\u0000");
+
+    private final ConcurrentHashMap<String, User> users;
+    private final UserPersistence persistence; // Journal de registos (null = sem persistência)
+    private final ThreadPool verifier;         // null = verificar na thread de quem chama
+    private final long cacheTtlNanos;
+    // Chave: username + digest(salt, password) -> instante (nanoTime) em que a verificação expira
+    private final ConcurrentHashMap<String, Long> verified = new ConcurrentHashMap<>();
+
     public Authentication() {
+        this(null, null, 0);
+    }
+
+    public Authentication(UserPersistence persistence, ThreadPool verifier, long cacheTtlMillis) {
         this.users = new ConcurrentHashMap<>();
-        this.lock = new ReentrantReadWriteLock();
+        this.persistence = persistence;
+        this.verifier = verifier;
+        this.cacheTtlNanos = TimeUnit.MILLISECONDS.toNanos(cacheTtlMillis);
+    }
+
+    // Cria a autenticação a partir das propriedades do sistema:
+    // auth.verifierThreads (por omissão metade dos cores), auth.verifierQueue (pedidos em espera, 256)
+    // e auth.cacheSeconds (validade das verificações em cache, 60; 0 desliga a cache)
+    public static Authentication fromSystemProperties(UserPersistence persistence) {
+        int cores = Runtime.getRuntime().availableProcessors();
+        int threads = Integer.getInteger("auth.verifierThreads", Math.max(1, cores / 2));
+        int queue = Integer.getInteger("auth.verifierQueue", 256);
+        long cacheSeconds = Long.getLong("auth.cacheSeconds", 60);
+        ThreadPool verifier = new ThreadPool("Verifier", threads, queue, ThreadPool.RejectionPolicy.ABORT);
+        return new Authentication(persistence, verifier, TimeUnit.SECONDS.toMillis(cacheSeconds));
     }
-    
-    // Regista um novo utilizador no sistema
+
+    // Regista um novo utilizador no sistema.
+    // O registo só é confirmado depois de estar no journal em disco.
     public boolean register(String username, String password) {
         if (username == null || username.trim().isEmpty()) {
             return false;
@@ -24,77 +67,153 @@ public class Authentication {
         if (password == null || password.isEmpty()) {
             return false;
         }
-        
-        lock.writeLock().lock();
-        try {
-            // Verificar se o utilizador já existe
-            if (users.containsKey(username)) {
-                return false;
+        if (users.containsKey(username)) {
+            return false; // Evitar o PBKDF2 quando o nome já está ocupado
+        }
+
+        // Criar e guardar novo utilizador (atómico: só um de dois registos concorrentes ganha).
+        // Entra no mapa antes do journal para uma compactação concorrente não o perder
+        // (no pior caso fica repetido no journal)
+        User user = User.withPassword(username, password);
+        if (users.putIfAbsent(username, user) != null) {
+            return false;
+        }
+        if (persistence != null) {
+            try {
+                persistence.append(user);
+            } catch (IOException e) {
+                users.remove(username, user);
+                throw new UncheckedIOException("Erro ao guardar registo", e);
             }
-            
-            // Criar e guardar novo utilizador
-            User user = new User(username, password);
-            users.put(username, user);
-            return true;
-            
-        } finally {
-            lock.writeLock().unlock();
         }
+        return true;
     }
-    
+
     // Regista um utilizador já existente (para persistência)
     public void register(User user) {
-        lock.writeLock().lock();
-        try {
-            users.put(user.getUsername(), user);
-        } finally {
-            lock.writeLock().unlock();
-        }
+        users.put(user.getUsername(), user);
     }
-    
-    // Autentica um utilizador
+
+    // Autentica um utilizador (na thread de quem chama)
     public User authenticate(String username, String password) {
         if (username == null || password == null) {
             return null;
         }
-        
-        lock.readLock().lock();
-        try {
+
+        User user = users.get(username);
+        if (user == null) {
+            NO_USER.checkPassword(password);
+            return null; // Utilizador não existe
+        }
+
+        return verify(user, password) ? user : null;
+    }
+
+    // Regista no executor de verificação; o future falha com RejectedExecutionException se estiver cheio
+    public CompletableFuture<Boolean> registerAsync(String username, String password) {
+        if (username == null || password == null || users.containsKey(username)) {
+            return CompletableFuture.completedFuture(register(username, password));
+        }
+        return submit(() -> register(username, password));
+    }
+
+    // Autentica no executor de verificação (null se as credenciais estiverem erradas).
+    // Uma verificação ainda em cache completa logo, sem passar pelo executor.
+    public CompletableFuture<User> authenticateAsync(String username, String password) {
+        if (username != null && password != null) {
             User user = users.get(username);
-            
-            if (user == null) {
-                return null; // Utilizador não existe
-            }
-            
-            if (user.checkPassword(password)) {
-                return user;
+            if (user != null && isCached(user, password)) {
+                return CompletableFuture.completedFuture(user);
             }
-            
-            return null; // Password incorreta
-            
-        } finally {
-            lock.readLock().unlock();
         }
+        return submit(() -> authenticate(username, password));
     }
-    
+
     // Obtém o número total de utilizadores registados.
     public int getUserCount() {
-        lock.readLock().lock();
-        try {
-            return users.size();
-        } finally {
-            lock.readLock().unlock();
-        }
+        return users.size();
     }
 
 
     // Obtém todos os utilizadores (para persistência)
     public List<User> getAllUsers() {
-        lock.readLock().lock();
+        return new ArrayList<>(users.values());
+    }
+
+    public ThreadPool getVerifier() {
+        return verifier;
+    }
+
+    public void shutdown() {
+        if (verifier != null) {
+            verifier.stop();
+        }
+    }
+
+    private boolean verify(User user, String password) {
+        if (isCached(user, password)) {
+            return true;
+        }
+        if (!user.checkPassword(password)) {
+            return false;
+        }
+        if (cacheTtlNanos > 0) {
+            if (verified.size() >= MAX_CACHED_VERIFICATIONS) {
+                long now = System.nanoTime();
+                verified.values().removeIf(expiresAt -> now - expiresAt >= 0);
+                if (verified.size() >= MAX_CACHED_VERIFICATIONS) {
+                    verified.clear();
+                }
+            }
+            verified.put(cacheKey(user, password), System.nanoTime() + cacheTtlNanos);
+        }
+        return true;
+    }
+
+    private boolean isCached(User user, String password) {
+        if (cacheTtlNanos <= 0 || verified.isEmpty()) {
+            return false;
+        }
+        Long expiresAt = verified.get(cacheKey(user, password));
+        return expiresAt != null && System.nanoTime() - expiresAt < 0;
+    }
+
+    // A cache nunca guarda a password: só um SHA-256 rápido dela com o salt do utilizador
+    private static String cacheKey(User user, String password) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(user.getSalt());
+            digest.update(password.getBytes(StandardCharsets.UTF_8));
+            return user.getUsername() + '\u0000' + Base64.getEncoder().encodeToString(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private <T> CompletableFuture<T> submit(Supplier<T> task) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        if (verifier == null) {
+            try {
+                result.complete(task.get());
+            } catch (RuntimeException e) {
+                result.completeExceptionally(e);
+            }
+            return result;
+        }
         try {
-            return new ArrayList<>(users.values());
-        } finally {
-            lock.readLock().unlock();
+            verifier.execute(() -> {
+                try {
+                    result.complete(task.get());
+                } catch (RuntimeException e) {
+                    result.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException | IllegalStateException e) {
+            result.completeExceptionally(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            result.completeExceptionally(e);
         }
+        return result;
     }
 }
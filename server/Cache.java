@@ -3,6 +3,7 @@ package server;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class Cache<T> {
@@ -38,6 +39,8 @@ public class Cache<T> {
     // Map para guardar os resultados
     private final Map<CacheKey, T> cacheMap;
     private final ReentrantReadWriteLock lock;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
     
     public Cache() {
         this.cacheMap = new HashMap<>();
@@ -54,12 +57,23 @@ public class Cache<T> {
     }
     
     public T get(String product, int days, String type) {
+        T value;
         lock.readLock().lock();
         try {
-            return cacheMap.get(new CacheKey(product, days, type));
+            value = cacheMap.get(new CacheKey(product, days, type));
         } finally {
             lock.readLock().unlock();
         }
+        (value != null ? hits : misses).increment();
+        return value;
+    }
+    
+    public long getHitCount() {
+        return hits.sum();
+    }
+    
+    public long getMissCount() {
+        return misses.sum();
     }
     
     public void clear() {
@@ -1,115 +1,373 @@
 package server;
 
+import geral.BufferPool;
 import geral.Protocol;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedInputStream;
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.net.Socket;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 //Handler para uma conexão de cliente.
 //Processa pedidos e envia respostas usando o protocolo
 //Submete cada request como tarefa independente à ThreadPool para processamento concorrente
+//Operações que alteram estado (registo, login, retoma de sessão, logout, novos eventos) passam pela mailbox da conexão
+//e correm pela ordem de chegada; consultas só esperam pelas alterações anteriores e depois correm em paralelo
+//As respostas seguem para o FrameWriter da conexão, que as envia em lote numa thread própria
+//Cada conexão tem um limite de pedidos em curso: ao atingi-lo deixa de ler do socket (backpressure)
+//Cada pedido regista nas Metrics o tempo desde a leitura até começar a correr e o tempo de execução
 public class ClientHandler implements Runnable {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_IN_FLIGHT = 64; // Pedidos lidos cuja resposta ainda não foi enviada
+    private static final long SLOW_READER_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(30);
+    private static final int STREAM_CHUNK_EVENTS = 4096; // Eventos por frame numa resposta em stream
+    private static final int STREAM_WINDOW = 2;          // Frames de um stream na fila de saída ao mesmo tempo
+    private static final int SUPPORTED_FEATURES =
+        Protocol.FEATURE_COMPACT | Protocol.FEATURE_PRICE_CENTS | Protocol.FEATURE_PRODUCT_DICT;
+    private static final AtomicBoolean firstResponse = new AtomicBoolean(false); // Para medir o tempo até ao 1º pedido
+
     private final Socket socket;
     private final ServerManager serverManager;
     private final ThreadPool threadPool;
     private DataInputStream in;
-    private DataOutputStream out;
-    private User authenticatedUser;
+    private byte[] readBuffer; // Só usado pela thread de leitura
+    private final BufferPool.Input frameInput = new BufferPool.Input();
+    private Protocol.Encoding encoding = Protocol.Encoding.LEGACY; // Só usado pela thread de leitura
+    private FrameWriter writer;
+    private final SerialExecutor mailbox;
+    // Só é alterado dentro da mailbox; as consultas usam uma cópia tirada na sua vez
+    private volatile User authenticatedUser;
+    private String sessionToken; // Sessão associada a esta conexão (só usado dentro da mailbox)
+
+    // Controlo de pedidos em curso desta conexão
+    private final ReentrantLock inFlightLock = new ReentrantLock();
+    private final Condition belowLimit = inFlightLock.newCondition();
+    private int inFlight = 0;
     
     public ClientHandler(Socket socket, ServerManager serverManager, ThreadPool threadPool) {
         this.socket = socket;
         this.serverManager = serverManager;
         this.threadPool = threadPool;
+        this.mailbox = new SerialExecutor(threadPool);
         this.authenticatedUser = null;
     }
     
     @Override
     public void run() {
         try {
-            in = new DataInputStream(socket.getInputStream());
-            out = new DataOutputStream(socket.getOutputStream());
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), READ_BUFFER_SIZE));
+            writer = new FrameWriter(socket.getOutputStream(), this::releaseInFlight, this::closeSocket);
+            Metrics.connectionOpened();
+            Thread writerThread = new Thread(writer, "Writer-" + socket.getRemoteSocketAddress());
+            writerThread.setDaemon(true);
+            writerThread.start();
             
-            System.out.println("Cliente conectado: " + socket.getInetAddress());
+            Log.info("Cliente conectado: " + socket.getInetAddress());
             
-            // Loop de leitura - submete cada request como tarefa independente à ThreadPool
+            // Loop de leitura - encaminha cada request para a mailbox ou para a ThreadPool
             while (!socket.isClosed()) {
+                // Esperar por orçamento antes de ler o próximo frame (o cliente sente a pressão via TCP)
+                if (!acquireInFlight()) {
+                    Log.warn("Cliente lento (não lê respostas), a fechar conexão: " + socket.getInetAddress());
+                    break;
+                }
+
                 // Ler tag (do Demultiplexer)
                 int tag = in.readInt();
                 // Ler tamanho do request
                 int requestLen = in.readInt();
-                // Ler dados do request
-                byte[] requestData = new byte[requestLen];
-                in.readFully(requestData);
-
-                // Desserializar request
-                ByteArrayInputStream bais = new ByteArrayInputStream(requestData);
-                DataInputStream dis = new DataInputStream(bais);
-                Protocol.Request request = Protocol.Request.readFrom(dis);
-                
-                // Submeter tarefa à ThreadPool para processar este request
-                threadPool.execute(() -> {
-                    try {
-                        // Processar request
-                        Protocol.Response response = processRequest(request);
-                        
-                        // Serializar response
-                        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                        DataOutputStream dos = new DataOutputStream(baos);
-                        response.writeTo(dos, request.getOperation());
-                        dos.flush();
-                        byte[] responseData = baos.toByteArray();
-                        
-                        // Enviar response com formato Demultiplexer
-                        synchronized (out) {
-                            out.writeInt(tag);
-                            out.writeInt(responseData.length);
-                            out.write(responseData);
-                            out.flush();
-                        }
-                    } catch (IOException e) {
-                        System.err.println("Erro ao enviar resposta: " + e.getMessage());
-                    }
-                });
+                // Ler dados do request para o buffer da conexão (reutilizado de frame para frame)
+                if (readBuffer == null || readBuffer.length < requestLen) {
+                    BufferPool.release(readBuffer);
+                    readBuffer = BufferPool.acquire(requestLen);
+                }
+                in.readFully(readBuffer, 0, requestLen);
+                long receivedAt = System.nanoTime();
+
+                // Desserializar request diretamente do buffer (os campos são copiados para o Request)
+                frameInput.reset(readBuffer, requestLen);
+                Protocol.Request request = Protocol.Request.readFrom(frameInput.data(), encoding);
+                if (readBuffer.length > READ_BUFFER_SIZE) {
+                    BufferPool.release(readBuffer); // Frame invulgarmente grande: não fica preso à conexão
+                    readBuffer = null;
+                }
+
+                if (request.getOperation() == Protocol.OP_HELLO) {
+                    negotiate(tag, request, receivedAt);
+                } else {
+                    dispatch(tag, request, encoding, receivedAt);
+                }
             }
             
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         } catch (IOException e) {
             if (!socket.isClosed()) {
-                System.err.println("Erro na comunicação com cliente: " + e.getMessage());
+                Log.error("Erro na comunicação com cliente: " + e.getMessage());
             }
         } finally {
             cleanup();
         }
     }
     
-    private Protocol.Response processRequest(Protocol.Request request) {
+    //Encaminha o pedido: alterações de estado para a mailbox (em série), consultas para a pool (em paralelo).
+    //Uma consulta vê sempre o efeito de todas as alterações de estado que a precederam nesta conexão.
+    //A resposta usa a codificação com que o pedido foi lido; receivedAt é o instante (nanoTime) da leitura.
+    private void dispatch(int tag, Protocol.Request request, Protocol.Encoding enc, long receivedAt)
+            throws InterruptedException {
+        if (isCredentialCheck(request.getOperation())) {
+            // PBKDF2 no executor de verificação: a mailbox espera pelo resultado sem ocupar um worker
+            mailbox.executeAsync(() -> respondAsync(tag, request, enc, receivedAt));
+        } else if (isStateChanging(request.getOperation())) {
+            mailbox.execute(() -> respond(tag, request, authenticatedUser, enc, receivedAt));
+        } else if (mailbox.isIdle()) {
+            // Nada pendente na mailbox (e só esta thread lhe acrescenta tarefas): pode partir já
+            User user = authenticatedUser;
+            threadPool.execute(() -> respond(tag, request, user, enc, receivedAt));
+        } else {
+            // Esperar pela vez na mailbox e só então lançar a consulta em paralelo
+            mailbox.execute(() -> {
+                User user = authenticatedUser;
+                Runnable query = () -> respond(tag, request, user, enc, receivedAt);
+                if (threadPool.tryExecute(query)) {
+                    return;
+                }
+                if (!isBlocking(request.getOperation())) {
+                    query.run(); // Pool cheia: uma agregação corre logo aqui, na vez da mailbox
+                    return;
+                }
+                // Uma consulta que espera por vendas nunca corre na mailbox: bloqueava as alterações
+                // seguintes desta conexão (incluindo os eventos por que está à espera) até ao fim do dia
+                try {
+                    threadPool.execute(query);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    send(tag, request, Protocol.Response.error(request.getRequestId(), 
+                        Protocol.STATUS_ERROR, "Servidor ocupado, tente novamente"), enc);
+                }
+            });
+        }
+    }
+
+    private static boolean isCredentialCheck(byte operation) {
+        return operation == Protocol.OP_REGISTER || operation == Protocol.OP_LOGIN;
+    }
+
+    //Consultas que bloqueiam à espera de novos eventos (podem durar até ao fim do dia)
+    private static boolean isBlocking(byte operation) {
+        return operation == Protocol.OP_SIMULTANEOUS_SALES || operation == Protocol.OP_CONSECUTIVE_SALES;
+    }
+
+    private static boolean isStateChanging(byte operation) {
+        switch (operation) {
+            case Protocol.OP_REGISTER:
+            case Protocol.OP_LOGIN:
+            case Protocol.OP_RESUME:
+            case Protocol.OP_LOGOUT:
+            case Protocol.OP_ADD_EVENT:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    //Processa o pedido, serializa a resposta e entrega-a ao FrameWriter
+    private void respond(int tag, Protocol.Request request, User user, Protocol.Encoding enc, long receivedAt) {
+        long startedAt = System.nanoTime();
+        if (request.getOperation() == Protocol.OP_FILTER_EVENTS_STREAM) {
+            // A execução conta até o stream ficar aberto e a primeira janela de partes na fila
+            startFilterStream(tag, request, user, enc, receivedAt, startedAt);
+            return;
+        }
+        if (request.getOperation() == Protocol.OP_MULTI) {
+            respondMulti(tag, request, user, enc, receivedAt, startedAt);
+            return;
+        }
+        Protocol.Response response = processRequest(request, user);
+        record(request, response, receivedAt, startedAt);
+        send(tag, request, response, enc);
+    }
+
+    //Regista o pedido nas Metrics (execução até agora)
+    private static void record(Protocol.Request request, Protocol.Response response, long receivedAt, long startedAt) {
+        Metrics.recordRequest(request.getOperation(), startedAt - receivedAt, System.nanoTime() - startedAt,
+            !response.isSuccess());
+    }
+
+    //OP_MULTI: os sub-pedidos correm em paralelo na pool (o primeiro nesta thread) e quem terminar
+    //o último envia todas as respostas num só frame. Nenhuma thread fica à espera das outras.
+    private void respondMulti(int tag, Protocol.Request request, User user, Protocol.Encoding enc,
+            long receivedAt, long startedAt) {
+        List<Protocol.Request> parts = request.getRequestList("requests");
+        if (parts == null || parts.isEmpty()) {
+            Protocol.Response error = Protocol.Response.error(request.getRequestId(), 
+                Protocol.STATUS_INVALID_PARAMS, "Sem sub-pedidos");
+            record(request, error, receivedAt, startedAt);
+            send(tag, request, error, enc);
+            return;
+        }
+
+        Protocol.Response[] responses = new Protocol.Response[parts.size()];
+        AtomicInteger remaining = new AtomicInteger(parts.size());
+        for (int i = parts.size() - 1; i >= 0; i--) {
+            int index = i;
+            Runnable part = () -> {
+                Protocol.Request sub = parts.get(index);
+                responses[index] = isMultiQuery(sub.getOperation())
+                    ? processRequest(sub, user)
+                    : Protocol.Response.error(sub.getRequestId(), 
+                        Protocol.STATUS_INVALID_PARAMS, "Operação não permitida em MULTI");
+                if (remaining.decrementAndGet() == 0) {
+                    Protocol.Response response = Protocol.Response.multi(request.getRequestId(), parts, 
+                        Arrays.asList(responses));
+                    record(request, response, receivedAt, startedAt);
+                    send(tag, request, response, enc);
+                }
+            };
+            if (index == 0 || !threadPool.tryExecute(part)) {
+                part.run(); // O primeiro (ou qualquer um, com a pool cheia) corre aqui
+            }
+        }
+    }
+
+    //Sub-pedidos aceites num OP_MULTI: consultas que não bloqueiam à espera de novos eventos
+    private static boolean isMultiQuery(byte operation) {
+        switch (operation) {
+            case Protocol.OP_QUANTITY_SOLD:
+            case Protocol.OP_SALES_VOLUME:
+            case Protocol.OP_AVERAGE_PRICE:
+            case Protocol.OP_MAX_PRICE:
+            case Protocol.OP_FILTER_EVENTS:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    //OP_HELLO é tratado aqui, na thread de leitura: a codificação nova aplica-se logo ao frame seguinte.
+    //A resposta segue na codificação antiga (o cliente só muda depois de a receber).
+    private void negotiate(int tag, Protocol.Request request, long receivedAt) {
+        Integer requested = request.getInt("features");
+        int accepted = requested == null ? 0 : requested & SUPPORTED_FEATURES;
+        if ((accepted & Protocol.FEATURE_COMPACT) == 0) {
+            accepted = 0; // As restantes opções dependem da codificação compacta
+        }
+        Protocol.Encoding previous = encoding;
+        encoding = Protocol.Encoding.of(accepted);
+        Protocol.Response response = Protocol.Response.success(request.getRequestId()).setData("features", accepted);
+        record(request, response, receivedAt, receivedAt);
+        send(tag, request, response, previous);
+    }
+
+    //Registo e login: a resposta é enviada quando a verificação terminar no executor de verificação
+    //(a execução registada inclui a espera e o PBKDF2 no executor de verificação)
+    private CompletableFuture<Void> respondAsync(int tag, Protocol.Request request, Protocol.Encoding enc,
+            long receivedAt) {
+        long startedAt = System.nanoTime();
+        CompletableFuture<Protocol.Response> response = request.getOperation() == Protocol.OP_LOGIN
+            ? handleLogin(request)
+            : handleRegister(request);
+        return response
+            .exceptionally(e -> credentialError(request, e))
+            .thenAccept(r -> {
+                record(request, r, receivedAt, startedAt);
+                send(tag, request, r, enc);
+            });
+    }
+
+    private static Protocol.Response credentialError(Protocol.Request request, Throwable e) {
+        Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+        if (cause instanceof RejectedExecutionException) {
+            return Protocol.Response.error(request.getRequestId(), 
+                Protocol.STATUS_ERROR, "Servidor ocupado, tente novamente");
+        }
+        return Protocol.Response.error(request.getRequestId(), 
+            Protocol.STATUS_ERROR, "Erro: " + cause.getMessage());
+    }
+
+    //Serializa a resposta e entrega-a ao FrameWriter
+    private void send(int tag, Protocol.Request request, Protocol.Response response, Protocol.Encoding enc) {
+        try {
+            // Serializar response num array do pool, que passa para o FrameWriter
+            BufferPool.Output out = BufferPool.Output.local();
+            response.writeTo(out.data(), request.getOperation(), enc);
+            int length = out.size();
+
+            // Entregar ao FrameWriter (formato Demultiplexer), sem bloquear no socket
+            writer.enqueue(tag, out.detach(), length);
+            if (!firstResponse.get() && firstResponse.compareAndSet(false, true)) {
+                long uptime = ManagementFactory.getRuntimeMXBean().getUptime();
+                Log.info("Primeiro pedido respondido " + uptime + " ms após o arranque da JVM");
+            }
+        } catch (IOException e) {
+            Log.error("Erro ao serializar resposta: " + e.getMessage());
+            releaseInFlight(1);
+        }
+    }
+
+    //Reserva um lugar para um novo pedido, esperando enquanto a conexão estiver no limite.
+    //Retorna false se o cliente deixou de ler respostas (escrita parada há demasiado tempo).
+    private boolean acquireInFlight() throws InterruptedException {
+        inFlightLock.lock();
         try {
+            while (inFlight >= MAX_IN_FLIGHT) {
+                if (writer.isStalled(SLOW_READER_TIMEOUT_NANOS) || socket.isClosed()) {
+                    return false;
+                }
+                belowLimit.await(1, TimeUnit.SECONDS);
+            }
+            inFlight++;
+            return true;
+        } finally {
+            inFlightLock.unlock();
+        }
+    }
+
+    //Liberta lugares de pedidos cujas respostas já foram enviadas
+    private void releaseInFlight(int count) {
+        inFlightLock.lock();
+        try {
+            inFlight -= count;
+            belowLimit.signal();
+        } finally {
+            inFlightLock.unlock();
+        }
+    }
+
+    private Protocol.Response processRequest(Protocol.Request request, User user) {
+        try {
+            // Registo e login seguem por respondAsync
             switch (request.getOperation()) {
-                case Protocol.OP_REGISTER:
-                    return handleRegister(request);
-                case Protocol.OP_LOGIN:
-                    return handleLogin(request);
+                case Protocol.OP_RESUME:
+                    return handleResume(request);
                 case Protocol.OP_LOGOUT:
-                    return handleLogout(request);
+                    return handleLogout(request, user);
                 case Protocol.OP_ADD_EVENT:
-                    return handleAddEvent(request);
+                    return handleAddEvent(request, user);
                 case Protocol.OP_QUANTITY_SOLD:
-                    return handleQuantitySold(request);
+                    return handleQuantitySold(request, user);
                 case Protocol.OP_SALES_VOLUME:
-                    return handleSalesVolume(request);
+                    return handleSalesVolume(request, user);
                 case Protocol.OP_AVERAGE_PRICE:
-                    return handleAveragePrice(request);
+                    return handleAveragePrice(request, user);
                 case Protocol.OP_MAX_PRICE:
-                    return handleMaxPrice(request);
+                    return handleMaxPrice(request, user);
                 case Protocol.OP_FILTER_EVENTS:
-                    return handleFilterEvents(request);
+                    return handleFilterEvents(request, user);
                 case Protocol.OP_SIMULTANEOUS_SALES:
-                    return handleSimultaneousSales(request);
+                    return handleSimultaneousSales(request, user);
                 case Protocol.OP_CONSECUTIVE_SALES:
-                    return handleConsecutiveSales(request);
+                    return handleConsecutiveSales(request, user);
                 default:
                     return Protocol.Response.error(request.getRequestId(), 
                         Protocol.STATUS_INVALID_PARAMS, "Operação desconhecida");
@@ -120,60 +378,100 @@ public class ClientHandler implements Runnable {
         }
     }
     
-    private Protocol.Response handleRegister(Protocol.Request request) {
+    private CompletableFuture<Protocol.Response> handleRegister(Protocol.Request request) {
         String username = request.getString("username");
         String password = request.getString("password");
         
         if (username == null || password == null) {
-            return Protocol.Response.error(request.getRequestId(), 
-                Protocol.STATUS_INVALID_PARAMS, "Username/password em falta");
+            return CompletableFuture.completedFuture(Protocol.Response.error(request.getRequestId(), 
+                Protocol.STATUS_INVALID_PARAMS, "Username/password em falta"));
         }
         
-        boolean success = serverManager.register(username, password);
-        
-        if (success) {
-            System.out.println("Utilizador registado: " + username);
-            return Protocol.Response.success(request.getRequestId());
-        } else {
-            return Protocol.Response.error(request.getRequestId(), 
-                Protocol.STATUS_USER_EXISTS, "Username já existe");
-        }
+        return serverManager.registerAsync(username, password).thenApply(success -> {
+            if (success) {
+                if (Log.sampleRequest()) {
+                    Log.info("Utilizador registado: " + username);
+                }
+                return Protocol.Response.success(request.getRequestId());
+            } else {
+                return Protocol.Response.error(request.getRequestId(), 
+                    Protocol.STATUS_USER_EXISTS, "Username já existe");
+            }
+        });
     }
     
-    private Protocol.Response handleLogin(Protocol.Request request) {
+    //Corre quando a verificação termina; a mailbox só avança depois, por isso pode alterar o estado da conexão
+    private CompletableFuture<Protocol.Response> handleLogin(Protocol.Request request) {
         String username = request.getString("username");
         String password = request.getString("password");
         
         if (username == null || password == null) {
+            return CompletableFuture.completedFuture(Protocol.Response.error(request.getRequestId(), 
+                Protocol.STATUS_INVALID_PARAMS, "Username/password em falta"));
+        }
+        
+        return serverManager.authenticateAsync(username, password).thenApply(user -> {
+            if (user != null) {
+                authenticatedUser = user;
+                serverManager.detachSession(sessionToken);
+                sessionToken = serverManager.createSession(user);
+                if (Log.sampleRequest()) {
+                    Log.info("Utilizador autenticado: " + username);
+                }
+                return Protocol.Response.success(request.getRequestId())
+                    .setData("token", sessionToken);
+            } else {
+                return Protocol.Response.error(request.getRequestId(), 
+                    Protocol.STATUS_AUTH_FAILED, "Credenciais inválidas");
+            }
+        });
+    }
+    
+    //Retoma uma sessão criada noutra conexão (reconexão): valida o token sem passar pela autenticação
+    private Protocol.Response handleResume(Protocol.Request request) {
+        String token = request.getString("token");
+        if (token == null) {
             return Protocol.Response.error(request.getRequestId(), 
-                Protocol.STATUS_INVALID_PARAMS, "Username/password em falta");
+                Protocol.STATUS_INVALID_PARAMS, "Token em falta");
         }
         
-        User user = serverManager.authenticate(username, password);
+        User user = serverManager.resumeSession(token);
+        if (user == null) {
+            return Protocol.Response.error(request.getRequestId(), 
+                Protocol.STATUS_AUTH_FAILED, "Sessão inválida ou expirada");
+        }
         
-        if (user != null) {
-            authenticatedUser = user;
-            System.out.println("Utilizador autenticado: " + username);
-            return Protocol.Response.success(request.getRequestId());
+        authenticatedUser = user;
+        if (!token.equals(sessionToken)) {
+            serverManager.detachSession(sessionToken);
+            sessionToken = token;
         } else {
-            return Protocol.Response.error(request.getRequestId(), 
-                Protocol.STATUS_AUTH_FAILED, "Credenciais inválidas");
+            serverManager.detachSession(token); // Já estava associada: não contar a conexão duas vezes
         }
+        if (Log.sampleRequest()) {
+            Log.info("Sessão retomada: " + user.getUsername());
+        }
+        return Protocol.Response.success(request.getRequestId())
+            .setData("username", user.getUsername());
     }
     
-    private Protocol.Response handleLogout(Protocol.Request request) {
-        if (authenticatedUser == null) {
+    private Protocol.Response handleLogout(Protocol.Request request, User user) {
+        if (user == null) {
             return Protocol.Response.error(request.getRequestId(), 
                 Protocol.STATUS_NOT_AUTHENTICATED, "Não autenticado");
         }
         
-        System.out.println("Utilizador desconectado: " + authenticatedUser.getUsername());
+        if (Log.sampleRequest()) {
+            Log.info("Utilizador desconectado: " + user.getUsername());
+        }
         authenticatedUser = null;
+        serverManager.invalidateSession(sessionToken);
+        sessionToken = null;
         return Protocol.Response.success(request.getRequestId());
     }
     
-    private Protocol.Response handleAddEvent(Protocol.Request request) {
-        if (authenticatedUser == null) {
+    private Protocol.Response handleAddEvent(Protocol.Request request, User user) {
+        if (user == null) {
             return Protocol.Response.error(request.getRequestId(), 
                 Protocol.STATUS_NOT_AUTHENTICATED, "Não autenticado");
         }
@@ -189,8 +487,10 @@ public class ClientHandler implements Runnable {
         
         try {
             serverManager.addEvent(product, quantity, price);
-            System.out.println("Utilizador: " + authenticatedUser.getUsername() 
-                + " adicionou Evento: produto:" + product + ", quantidade:" + quantity + ", preço:" + price);
+            if (Log.sampleRequest()) {
+                Log.info("Utilizador: " + user.getUsername() 
+                    + " adicionou Evento: produto:" + product + ", quantidade:" + quantity + ", preço:" + price);
+            }
             return Protocol.Response.success(request.getRequestId());
         } catch (Exception e) {
             return Protocol.Response.error(request.getRequestId(), 
@@ -198,8 +498,8 @@ public class ClientHandler implements Runnable {
         }
     }
     
-    private Protocol.Response handleQuantitySold(Protocol.Request request) {
-        if (authenticatedUser == null) {
+    private Protocol.Response handleQuantitySold(Protocol.Request request, User user) {
+        if (user == null) {
             return Protocol.Response.error(request.getRequestId(), 
                 Protocol.STATUS_NOT_AUTHENTICATED, "Não autenticado");
         }
@@ -219,14 +519,16 @@ public class ClientHandler implements Runnable {
                 Protocol.STATUS_ERROR, result.warning != null ? result.warning : "Dados insuficientes");
         }
         
-        System.out.println("Utilizador: " + authenticatedUser.getUsername() + " consultou Quantidade: produto:" + product + ", dias:" + days + ")");
+        if (Log.sampleRequest()) {
+            Log.info("Utilizador: " + user.getUsername() + " consultou Quantidade: produto:" + product + ", dias:" + days + ")");
+        }
         
         return Protocol.Response.success(request.getRequestId())
             .setData("quantity", result.value);
     }
     
-    private Protocol.Response handleSalesVolume(Protocol.Request request) {
-        if (authenticatedUser == null) {
+    private Protocol.Response handleSalesVolume(Protocol.Request request, User user) {
+        if (user == null) {
             return Protocol.Response.error(request.getRequestId(), 
                 Protocol.STATUS_NOT_AUTHENTICATED, "Não autenticado");
         }
@@ -245,14 +547,16 @@ public class ClientHandler implements Runnable {
                 Protocol.STATUS_ERROR, result.warning != null ? result.warning : "Dados insuficientes");
         }
         
-        System.out.println("Utilizador: " + authenticatedUser.getUsername() + " consultou Volume: produto:" + product + ", dias:" + days + ")");
+        if (Log.sampleRequest()) {
+            Log.info("Utilizador: " + user.getUsername() + " consultou Volume: produto:" + product + ", dias:" + days + ")");
+        }
         
         return Protocol.Response.success(request.getRequestId())
             .setData("volume", result.value);
     }
     
-    private Protocol.Response handleAveragePrice(Protocol.Request request) {
-        if (authenticatedUser == null) {
+    private Protocol.Response handleAveragePrice(Protocol.Request request, User user) {
+        if (user == null) {
             return Protocol.Response.error(request.getRequestId(), 
                 Protocol.STATUS_NOT_AUTHENTICATED, "Não autenticado");
         }
@@ -272,14 +576,16 @@ public class ClientHandler implements Runnable {
                 Protocol.STATUS_ERROR, result.warning != null ? result.warning : "Dados insuficientes");
         }
         
-        System.out.println("Utilizador: " + authenticatedUser.getUsername() + " consultou Preço Médio: produto:" + product + ", dias:" + days + ")");
+        if (Log.sampleRequest()) {
+            Log.info("Utilizador: " + user.getUsername() + " consultou Preço Médio: produto:" + product + ", dias:" + days + ")");
+        }
 
         return Protocol.Response.success(request.getRequestId())
             .setData("avgPrice", result.value);
     }
 
-    private Protocol.Response handleMaxPrice(Protocol.Request request) {
-        if (authenticatedUser == null) {
+    private Protocol.Response handleMaxPrice(Protocol.Request request, User user) {
+        if (user == null) {
             return Protocol.Response.error(request.getRequestId(), 
                 Protocol.STATUS_NOT_AUTHENTICATED, "Não autenticado");
         }
@@ -299,14 +605,16 @@ public class ClientHandler implements Runnable {
                 Protocol.STATUS_ERROR, result.warning != null ? result.warning : "Dados insuficientes");
         }
         
-        System.out.println("Utilizador: " + authenticatedUser.getUsername() + " consultou Preço Máximo: produto:" + product + ", dias:" + days + ")");
+        if (Log.sampleRequest()) {
+            Log.info("Utilizador: " + user.getUsername() + " consultou Preço Máximo: produto:" + product + ", dias:" + days + ")");
+        }
         
         return Protocol.Response.success(request.getRequestId())
             .setData("maxPrice", result.value);
     }
 
-    private Protocol.Response handleFilterEvents(Protocol.Request request) {
-        if (authenticatedUser == null) {
+    private Protocol.Response handleFilterEvents(Protocol.Request request, User user) {
+        if (user == null) {
             return Protocol.Response.error(request.getRequestId(), 
                 Protocol.STATUS_NOT_AUTHENTICATED, "Não autenticado");
         }
@@ -326,15 +634,135 @@ public class ClientHandler implements Runnable {
         
         List<Protocol.Event> events = serverManager.getFilteredEvents(products, dayOffset);
         
-        System.out.println("Utilizador: " + authenticatedUser.getUsername() + " filtrou eventos: produto(s):" + products + " (dia: " + dayOffset + ")");
+        if (Log.sampleRequest()) {
+            Log.info("Utilizador: " + user.getUsername() + " filtrou eventos: produto(s):" + products + " (dia: " + dayOffset + ")");
+        }
         
         return Protocol.Response.success(request.getRequestId())
             .setData("events", events);
     }
     
+    //Filtro com a resposta em partes: valida o pedido e lança o FilterStream (ou responde logo com o erro)
+    private void startFilterStream(int tag, Protocol.Request request, User user, Protocol.Encoding enc,
+            long receivedAt, long startedAt) {
+        Protocol.Response error = null;
+        List<String> products = request.getStringList("products");
+        Integer dayOffset = request.getInt("dayOffset");
+        if (user == null) {
+            error = Protocol.Response.error(request.getRequestId(), 
+                Protocol.STATUS_NOT_AUTHENTICATED, "Não autenticado");
+        } else if (products == null || products.isEmpty() || dayOffset == null || dayOffset < 0) {
+            error = Protocol.Response.error(request.getRequestId(), 
+                Protocol.STATUS_INVALID_PARAMS, "Parâmetros inválidos");
+        }
+        if (error != null) {
+            record(request, error, receivedAt, startedAt);
+            send(tag, request, error, enc);
+            return;
+        }
+
+        try {
+            TimeSeriesManager.FilterScan scan = serverManager.openFilterScan(products, dayOffset);
+            if (Log.sampleRequest()) {
+                Log.info("Utilizador: " + user.getUsername() + " filtrou eventos em stream: produto(s):" + products + " (dia: " + dayOffset + ")");
+            }
+            new FilterStream(tag, request, enc, scan).run();
+            Metrics.recordRequest(request.getOperation(), startedAt - receivedAt, System.nanoTime() - startedAt, false);
+        } catch (IOException e) {
+            error = Protocol.Response.error(request.getRequestId(), 
+                Protocol.STATUS_ERROR, "Erro: " + e.getMessage());
+            record(request, error, receivedAt, startedAt);
+            send(tag, request, error, enc);
+        }
+    }
+
+    //Resposta de um filtro em stream: cada parte é lida, serializada e posta na fila de saída à vez,
+    //com no máximo STREAM_WINDOW partes à espera do socket. Quando uma parte é enviada a thread
+    //escritora agenda a seguinte na pool, por isso nenhum worker fica bloqueado à espera de um cliente lento
+    //e a memória usada não depende do tamanho do resultado.
+    private final class FilterStream implements Runnable {
+        private final int tag;
+        private final Protocol.Request request;
+        private final Protocol.Encoding enc;
+        private final TimeSeriesManager.FilterScan scan;
+        private final ReentrantLock lock = new ReentrantLock();
+        private int queued;       // Partes na fila do FrameWriter ainda por enviar
+        private boolean running = true; // run() agendado ou a correr
+        private boolean finished; // Último frame já na fila
+
+        FilterStream(int tag, Protocol.Request request, Protocol.Encoding enc, TimeSeriesManager.FilterScan scan) {
+            this.tag = tag;
+            this.request = request;
+            this.enc = enc;
+            this.scan = scan;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                lock.lock();
+                try {
+                    if (finished || queued >= STREAM_WINDOW || socket.isClosed()) {
+                        running = false;
+                        return;
+                    }
+                } finally {
+                    lock.unlock();
+                }
+
+                Protocol.Response response;
+                boolean more;
+                try {
+                    List<Protocol.Event> events = scan.next(STREAM_CHUNK_EVENTS);
+                    more = scan.hasMore();
+                    response = Protocol.Response.success(request.getRequestId()).setData("events", events);
+                } catch (IOException | RuntimeException e) {
+                    more = false;
+                    response = Protocol.Response.error(request.getRequestId(), 
+                        Protocol.STATUS_ERROR, "Erro: " + e.getMessage());
+                }
+
+                BufferPool.Output out = BufferPool.Output.local();
+                try {
+                    response.writeTo(out.data(), request.getOperation(), enc);
+                } catch (IOException e) {
+                    Log.error("Erro ao serializar resposta: " + e.getMessage());
+                    closeSocket(); // Frames anteriores já seguiram: o stream não pode ser terminado com outro frame
+                    return;
+                }
+
+                lock.lock();
+                try {
+                    queued++;
+                    finished = !more;
+                } finally {
+                    lock.unlock();
+                }
+                int length = out.size();
+                writer.enqueue(tag, out.detach(), length, more, this::partSent);
+            }
+        }
+
+        //Corre na thread escritora depois de uma parte ser enviada
+        private void partSent() {
+            boolean schedule;
+            lock.lock();
+            try {
+                queued--;
+                schedule = !running && !finished;
+                running |= schedule;
+            } finally {
+                lock.unlock();
+            }
+            if (schedule && !threadPool.tryExecute(this)) {
+                run(); // Pool cheia: a parte seguinte é preparada aqui
+            }
+        }
+    }
+    
     // Handler para vendas simultâneas (bloqueante)
-    private Protocol.Response handleSimultaneousSales(Protocol.Request request) {
-        if (authenticatedUser == null) {
+    private Protocol.Response handleSimultaneousSales(Protocol.Request request, User user) {
+        if (user == null) {
             return Protocol.Response.error(request.getRequestId(), Protocol.STATUS_NOT_AUTHENTICATED, "Não autenticado");
         }
         String product1 = request.getString("product1");
@@ -343,13 +771,15 @@ public class ClientHandler implements Runnable {
             return Protocol.Response.error(request.getRequestId(), Protocol.STATUS_INVALID_PARAMS, "Parâmetros inválidos");
         }
         boolean result = serverManager.waitForSimultaneousSales(product1, product2);
-        System.out.println("Utilizador: " + authenticatedUser.getUsername() + " aguardou Simultanêas: produto1:" + product1 + ", produto2:" + product2 + " (" + result + ")");
+        if (Log.sampleRequest()) {
+            Log.info("Utilizador: " + user.getUsername() + " aguardou Simultanêas: produto1:" + product1 + ", produto2:" + product2 + " (" + result + ")");
+        }
         return Protocol.Response.success(request.getRequestId()).setData("result", result);
     }
     
     // Handler para vendas consecutivas (bloqueante)
-    private Protocol.Response handleConsecutiveSales(Protocol.Request request) {
-        if (authenticatedUser == null) {
+    private Protocol.Response handleConsecutiveSales(Protocol.Request request, User user) {
+        if (user == null) {
             return Protocol.Response.error(request.getRequestId(), Protocol.STATUS_NOT_AUTHENTICATED, "Não autenticado");
         }
         Integer n = request.getInt("n");
@@ -357,18 +787,50 @@ public class ClientHandler implements Runnable {
             return Protocol.Response.error(request.getRequestId(), Protocol.STATUS_INVALID_PARAMS, "Parâmetro n inválido");
         }
         String product = serverManager.waitForConsecutiveSales(n);
-        System.out.println("Utilizador: " + authenticatedUser.getUsername() + " aguardou Consecutivas: n:" + n + " (produto: " + product + ")");
+        if (Log.sampleRequest()) {
+            Log.info("Utilizador: " + user.getUsername() + " aguardou Consecutivas: n:" + n + " (produto: " + product + ")");
+        }
         return Protocol.Response.success(request.getRequestId()).setData("product", product);
     }
     
     private void cleanup() {
+        if (writer != null) {
+            Metrics.connectionClosed(); // Só contada como aberta depois de o writer existir
+        }
+        // A sessão continua válida (durante o TTL) para o cliente a poder retomar noutra conexão;
+        // passa pela mailbox para não se cruzar com um login ou retoma ainda pendente
+        try {
+            mailbox.execute(this::detachSession);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            detachSession();
+        } catch (IllegalStateException e) {
+            detachSession(); // Servidor a encerrar
+        }
+        frameInput.clear();
+        BufferPool.release(readBuffer);
+        readBuffer = null;
         try {
+            if (writer != null) writer.close();
             if (in != null) in.close();
-            if (out != null) out.close();
             if (!socket.isClosed()) socket.close();
-            System.out.println("Cliente desconectado: " + socket.getInetAddress());
+            Log.info("Cliente desconectado: " + socket.getInetAddress());
+        } catch (IOException e) {
+            Log.error("Erro ao limpar recursos: " + e.getMessage());
+        }
+    }
+
+    private void detachSession() {
+        serverManager.detachSession(sessionToken);
+        sessionToken = null;
+    }
+
+    //Fecha o socket (usado pelo FrameWriter quando a escrita falha), desbloqueando a leitura
+    private void closeSocket() {
+        try {
+            socket.close();
         } catch (IOException e) {
-            System.err.println("Erro ao limpar recursos: " + e.getMessage());
+            Log.error("Erro ao fechar socket: " + e.getMessage());
         }
     }
 }
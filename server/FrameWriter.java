@@ -0,0 +1,187 @@
+package server;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import geral.BufferPool;
+import geral.Protocol;
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntConsumer;
+
+//Escritor de respostas de uma conexão.
+//As threads da ThreadPool apenas colocam frames na fila de saída (sem tocar no socket);
+//uma única thread escritora drena todos os frames pendentes de uma vez para um
+//BufferedOutputStream e faz um só flush, juntando várias respostas numa única escrita.
+//Uma resposta em stream ocupa vários frames com a mesma tag; só o último conta como resposta enviada.
+//Os dados de cada frame pertencem ao FrameWriter a partir de enqueue e voltam ao BufferPool depois de escritos.
+public class FrameWriter implements Runnable {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final DataOutputStream out;
+    private final IntConsumer onWritten;
+    private final Runnable onError;
+
+    // Instante (nanoTime) em que começou a escrita de lote em curso; 0 se o escritor está parado.
+    // Permite detetar clientes que não lêem as respostas (escrita bloqueada no socket).
+    private volatile long writeStartNanos = 0;
+
+    // Primitivas de Sincronização
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+
+    // Duas filas: os produtores enchem "pending" enquanto o escritor esvazia "draining"
+    private ArrayDeque<Frame> pending = new ArrayDeque<>();
+    private ArrayDeque<Frame> draining = new ArrayDeque<>();
+    private boolean closed = false;
+
+    // Frame no formato do Demultiplexer: [tag][tamanho][dados]
+    private static class Frame {
+        final int tag;
+        final byte[] data;
+        final int length;
+        final boolean more;    // Não é o último frame da resposta (Protocol.FRAME_MORE)
+        final Runnable onSent; // Chamado depois do flush que o enviou (pode ser null)
+        final long enqueuedAt; // nanoTime de enqueue, para Metrics.recordWrite
+
+        Frame(int tag, byte[] data, int length, boolean more, Runnable onSent) {
+            this.tag = tag;
+            this.data = data;
+            this.length = length;
+            this.more = more;
+            this.onSent = onSent;
+            this.enqueuedAt = System.nanoTime();
+        }
+    }
+
+    //onWritten recebe o número de respostas completas enviadas após cada flush;
+    //onError é chamado (na thread escritora) se a escrita no socket falhar
+    public FrameWriter(OutputStream socketOut, IntConsumer onWritten, Runnable onError) {
+        this.out = new DataOutputStream(new BufferedOutputStream(socketOut, BUFFER_SIZE));
+        this.onWritten = onWritten;
+        this.onError = onError;
+    }
+
+    //Coloca um frame (os primeiros length bytes de data) na fila de saída. Não bloqueia à espera do socket.
+    public void enqueue(int tag, byte[] data, int length) {
+        enqueue(tag, data, length, false, null);
+    }
+
+    //Coloca na fila uma parte de uma resposta em stream (more = seguem-se outras com a mesma tag).
+    //onSent corre na thread escritora depois de a parte ser enviada; é assim que o produtor sabe
+    //que pode preparar a seguinte sem acumular a resposta inteira na fila.
+    public void enqueue(int tag, byte[] data, int length, boolean more, Runnable onSent) {
+        lock.lock();
+        try {
+            if (closed) {
+                BufferPool.release(data);
+                return; // Conexão a fechar: a resposta é descartada
+            }
+            pending.add(new Frame(tag, data, length, more, onSent));
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //Pede à thread escritora que termine depois de enviar o que já está na fila.
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //Indica se a escrita em curso está bloqueada há mais de timeoutNanos (cliente lento a ler)
+    public boolean isStalled(long timeoutNanos) {
+        long start = writeStartNanos;
+        return start != 0 && System.nanoTime() - start > timeoutNanos;
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                lock.lock();
+                try {
+                    while (pending.isEmpty() && !closed) {
+                        notEmpty.await();
+                    }
+                    if (pending.isEmpty()) {
+                        return; // Fechado e sem nada para enviar
+                    }
+                    // Troca as filas: tudo o que estava pendente passa a ser escrito fora do lock
+                    ArrayDeque<Frame> tmp = draining;
+                    draining = pending;
+                    pending = tmp;
+                } finally {
+                    lock.unlock();
+                }
+
+                // Escreve todos os frames acumulados e faz um único flush (uma syscall por lote)
+                writeStartNanos = System.nanoTime();
+                int count = 0;
+                for (Frame frame : draining) {
+                    out.writeInt(frame.tag);
+                    out.writeInt(frame.more ? frame.length | Protocol.FRAME_MORE : frame.length);
+                    out.write(frame.data, 0, frame.length);
+                    if (!frame.more) {
+                        count++;
+                    }
+                }
+                out.flush();
+                writeStartNanos = 0;
+                long flushedAt = System.nanoTime();
+                Metrics.recordFlush();
+                Frame frame;
+                while ((frame = draining.poll()) != null) {
+                    Metrics.recordWrite(flushedAt - frame.enqueuedAt);
+                    BufferPool.release(frame.data);
+                    if (frame.onSent != null) {
+                        frame.onSent.run();
+                    }
+                }
+                onWritten.accept(count);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            Log.error("Erro ao enviar resposta: " + e.getMessage());
+            writeStartNanos = 0;
+            close();
+            onError.run();
+            discardAll();
+        }
+    }
+
+    //Depois de uma escrita falhada: os frames por enviar são descartados, mas os arrays voltam ao pool,
+    //os onSent correm (o produtor vê o socket fechado e pára) e as respostas contam como terminadas
+    //em onWritten, como num flush normal. Com closed = true, nada mais entra em pending.
+    private void discardAll() {
+        ArrayDeque<Frame> dropped = new ArrayDeque<>(draining);
+        draining.clear();
+        lock.lock();
+        try {
+            dropped.addAll(pending);
+            pending.clear();
+        } finally {
+            lock.unlock();
+        }
+        int count = 0;
+        for (Frame frame : dropped) {
+            BufferPool.release(frame.data);
+            if (!frame.more) {
+                count++;
+            }
+            if (frame.onSent != null) {
+                frame.onSent.run();
+            }
+        }
+        onWritten.accept(count);
+    }
+}
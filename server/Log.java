@@ -0,0 +1,235 @@
+package server;
+
+import java.io.PrintStream;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+//Logging assíncrono do servidor.
+//As threads de trabalho apenas copiam (nível, instante, mensagem) para uma posição pré-alocada de um
+//anel sem locks; uma thread de fundo formata e escreve em lote. Se o anel estiver cheio a mensagem é
+//descartada (e contada) em vez de bloquear o pedido.
+//Nos pontos quentes usa-se o padrão: if (Log.sampleRequest()) Log.info("..." + x);
+//Com o nível desligado, a verificação é uma leitura volátil e não aloca nada.
+public final class Log {
+
+    public enum Level {
+        DEBUG, INFO, WARN, ERROR
+    }
+
+    private static final int CAPACITY = 8192; // Potência de 2
+    private static final int MASK = CAPACITY - 1;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+
+    // Posições do anel (pré-alocadas: publicar uma mensagem não cria objetos)
+    private static final Level[] levels = new Level[CAPACITY];
+    private static final long[] timestamps = new long[CAPACITY];
+    private static final String[] messages = new String[CAPACITY];
+    private static final AtomicLongArray sequence = new AtomicLongArray(CAPACITY);
+    private static final AtomicLong enqueuePos = new AtomicLong();
+    private static long dequeuePos = 0; // Só a thread escritora lê
+    private static volatile long flushedPos = 0; // Mensagens até aqui já escritas (para shutdown)
+    private static final Thread writer;
+
+    // Fuso horário local (só usado pela thread escritora): o desvio é recalculado apenas na transição seguinte
+    private static final ZoneRules zoneRules = ZoneId.systemDefault().getRules();
+    private static long offsetMillis;
+    private static long offsetValidUntil = Long.MIN_VALUE;
+
+    private static final LongAdder dropped = new LongAdder();
+    private static final AtomicLong requestCounter = new AtomicLong();
+
+    private static volatile Level level = parseLevel(System.getProperty("log.level"), Level.INFO);
+    private static volatile int requestSampleRate = Integer.getInteger("log.sample", 1);
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            sequence.set(i, i);
+        }
+        writer = new Thread(Log::writerLoop, "Log-Writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    private Log() {
+    }
+
+    // ==================== CONFIGURAÇÃO ====================
+
+    public static void setLevel(Level newLevel) {
+        level = newLevel;
+    }
+
+    public static Level getLevel() {
+        return level;
+    }
+
+    //Regista apenas 1 em cada n logs por pedido (1 = todos)
+    public static void setRequestSampleRate(int n) {
+        requestSampleRate = Math.max(1, n);
+    }
+
+    public static int getRequestSampleRate() {
+        return requestSampleRate;
+    }
+
+    public static long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    public static Level parseLevel(String name, Level fallback) {
+        if (name == null) {
+            return fallback;
+        }
+        try {
+            return Level.valueOf(name.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return fallback;
+        }
+    }
+
+    // ==================== API ====================
+
+    public static boolean isEnabled(Level l) {
+        return l.ordinal() >= level.ordinal();
+    }
+
+    //Decide se o log de um pedido (nível INFO) deve ser emitido, aplicando amostragem
+    public static boolean sampleRequest() {
+        if (!isEnabled(Level.INFO)) {
+            return false;
+        }
+        int rate = requestSampleRate;
+        return rate <= 1 || requestCounter.incrementAndGet() % rate == 0;
+    }
+
+    public static void debug(String message) {
+        log(Level.DEBUG, message);
+    }
+
+    public static void info(String message) {
+        log(Level.INFO, message);
+    }
+
+    public static void warn(String message) {
+        log(Level.WARN, message);
+    }
+
+    public static void error(String message) {
+        log(Level.ERROR, message);
+    }
+
+    public static void log(Level l, String message) {
+        if (!isEnabled(l)) {
+            return;
+        }
+        // Reservar uma posição no anel (vários produtores, CAS sobre o cursor)
+        long pos = enqueuePos.get();
+        int idx;
+        while (true) {
+            idx = (int) (pos & MASK);
+            long dif = sequence.get(idx) - pos;
+            if (dif == 0) {
+                if (enqueuePos.compareAndSet(pos, pos + 1)) break;
+                pos = enqueuePos.get();
+            } else if (dif < 0) {
+                dropped.increment(); // Anel cheio: não bloquear o pedido
+                return;
+            } else {
+                pos = enqueuePos.get();
+            }
+        }
+        levels[idx] = l;
+        timestamps[idx] = System.currentTimeMillis();
+        messages[idx] = message;
+        sequence.set(idx, pos + 1);
+    }
+
+    //Espera (no máximo timeoutMillis) que as mensagens já publicadas sejam escritas.
+    //Chamado ao encerrar o servidor, já que a thread escritora é daemon e não trava a saída da JVM.
+    public static void shutdown(long timeoutMillis) {
+        long target = enqueuePos.get();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (flushedPos < target && System.nanoTime() < deadline) {
+            LockSupport.unpark(writer);
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+    }
+
+    // ==================== ESCRITA (thread de fundo) ====================
+
+    private static void writerLoop() {
+        StringBuilder out = new StringBuilder(16 * 1024);
+        StringBuilder err = new StringBuilder(1024);
+        long lastDropped = 0;
+
+        while (true) {
+            // Drenar tudo o que está publicado
+            while (true) {
+                int idx = (int) (dequeuePos & MASK);
+                if (sequence.get(idx) != dequeuePos + 1) {
+                    break;
+                }
+                Level l = levels[idx];
+                StringBuilder target = l.ordinal() >= Level.WARN.ordinal() ? err : out;
+                format(target, l, timestamps[idx], messages[idx]);
+                messages[idx] = null;
+                sequence.set(idx, dequeuePos + CAPACITY);
+                dequeuePos++;
+            }
+
+            long droppedNow = dropped.sum();
+            if (droppedNow != lastDropped) {
+                format(err, Level.WARN, System.currentTimeMillis(),
+                    (droppedNow - lastDropped) + " mensagens de log descartadas (buffer cheio)");
+                lastDropped = droppedNow;
+            }
+
+            flush(System.out, out);
+            flush(System.err, err);
+            flushedPos = dequeuePos;
+            LockSupport.parkNanos(IDLE_PARK_NANOS);
+        }
+    }
+
+    private static void format(StringBuilder sb, Level l, long millis, String message) {
+        millis += localOffset(millis);
+        long secondsOfDay = Math.floorMod(millis / 1000, 86400);
+        append2(sb, (int) (secondsOfDay / 3600)).append(':');
+        append2(sb, (int) (secondsOfDay / 60 % 60)).append(':');
+        append2(sb, (int) (secondsOfDay % 60)).append('.');
+        int ms = (int) (millis % 1000);
+        sb.append(ms < 100 ? (ms < 10 ? "00" : "0") : "").append(ms);
+        sb.append(" [").append(l.name()).append("] ").append(message).append('\n');
+    }
+
+    // Desvio do fuso local em millis; só cria objetos quando passa uma mudança de hora
+    private static long localOffset(long millis) {
+        if (millis >= offsetValidUntil) {
+            Instant now = Instant.ofEpochMilli(millis);
+            offsetMillis = zoneRules.getOffset(now).getTotalSeconds() * 1000L;
+            ZoneOffsetTransition next = zoneRules.nextTransition(now);
+            offsetValidUntil = next == null ? Long.MAX_VALUE : next.toEpochSecond() * 1000;
+        }
+        return offsetMillis;
+    }
+
+    private static StringBuilder append2(StringBuilder sb, int value) {
+        if (value < 10) sb.append('0');
+        return sb.append(value);
+    }
+
+    private static void flush(PrintStream stream, StringBuilder sb) {
+        if (sb.length() > 0) {
+            stream.print(sb);
+            stream.flush();
+            sb.setLength(0);
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package server;
+
+import geral.Protocol;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+//Registo de métricas do servidor (sem locks).
+//Por operação: pedidos, erros e histogramas de tempo na fila (desde a leitura do frame até começar a correr,
+//incluindo a espera na mailbox) e de execução. Globais: tempo de escrita (desde a entrada na fila do
+//FrameWriter até ao flush), conexões ativas e espera pelos locks do TimeSeriesManager.
+//Registar um valor são alguns incrementos atómicos; os histogramas de uma operação só são criados
+//quando ela aparece pela primeira vez.
+public final class Metrics {
+    private static final int OP_SLOTS = 256;
+
+    private static final AtomicReferenceArray<OpStats> ops = new AtomicReferenceArray<>(OP_SLOTS);
+
+    public static final Histogram WRITE = new Histogram();
+    public static final Histogram LOCK_READ_WAIT = new Histogram();
+    public static final Histogram LOCK_WRITE_WAIT = new Histogram();
+
+    private static final AtomicInteger activeConnections = new AtomicInteger();
+    private static final LongAdder totalConnections = new LongAdder();
+    private static final LongAdder flushes = new LongAdder();
+    private static final LongAdder lockAcquisitions = new LongAdder();
+
+    private Metrics() {
+    }
+
+    //Contadores e histogramas de uma operação
+    public static final class OpStats {
+        final LongAdder requests = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        final Histogram queue = new Histogram();
+        final Histogram execution = new Histogram();
+    }
+
+    // ==================== REGISTO ====================
+
+    //Pedido terminado: queueNanos desde a leitura até começar a correr, execNanos a processar
+    public static void recordRequest(byte operation, long queueNanos, long execNanos, boolean error) {
+        OpStats stats = stats(operation);
+        stats.requests.increment();
+        if (error) {
+            stats.errors.increment();
+        }
+        stats.queue.record(queueNanos);
+        stats.execution.record(execNanos);
+    }
+
+    //Frame enviado: nanos desde enqueue até ao fim do flush que o levou
+    public static void recordWrite(long nanos) {
+        WRITE.record(nanos);
+    }
+
+    public static void recordFlush() {
+        flushes.increment();
+    }
+
+    //Aquisição de um lock do TimeSeriesManager; waitNanos só é registado se houve espera
+    public static void recordLock(boolean write, long waitNanos) {
+        lockAcquisitions.increment();
+        if (waitNanos > 0) {
+            (write ? LOCK_WRITE_WAIT : LOCK_READ_WAIT).record(waitNanos);
+        }
+    }
+
+    public static void connectionOpened() {
+        activeConnections.incrementAndGet();
+        totalConnections.increment();
+    }
+
+    public static void connectionClosed() {
+        activeConnections.decrementAndGet();
+    }
+
+    private static OpStats stats(byte operation) {
+        int slot = operation & 0xFF;
+        OpStats stats = ops.get(slot);
+        if (stats == null) {
+            ops.compareAndSet(slot, null, new OpStats());
+            stats = ops.get(slot);
+        }
+        return stats;
+    }
+
+    // ==================== CONSULTA ====================
+
+    public static int getActiveConnections() {
+        return activeConnections.get();
+    }
+
+    public static long getTotalConnections() {
+        return totalConnections.sum();
+    }
+
+    public static long getFlushCount() {
+        return flushes.sum();
+    }
+
+    public static long getLockAcquisitions() {
+        return lockAcquisitions.sum();
+    }
+
+    //Volta a pôr histogramas e contadores de pedidos a zero (as conexões ativas mantêm-se).
+    //Não é atómico em relação a quem está a registar: valores concorrentes podem perder-se.
+    public static void reset() {
+        for (int i = 0; i < OP_SLOTS; i++) {
+            ops.set(i, null);
+        }
+        WRITE.reset();
+        LOCK_READ_WAIT.reset();
+        LOCK_WRITE_WAIT.reset();
+        flushes.reset();
+        lockAcquisitions.reset();
+    }
+
+    //Tabela por operação e linhas globais (latências em microssegundos: média, p50, p99, p99.9, máx)
+    public static String snapshot() {
+        StringBuilder sb = new StringBuilder(2048);
+        sb.append(String.format("%-18s %9s %6s | %-36s | %-36s%n", "operação", "pedidos", "erros",
+            "fila us (média p50 p99 p99.9 máx)", "execução us (média p50 p99 p99.9 máx)"));
+        for (int i = 0; i < OP_SLOTS; i++) {
+            OpStats stats = ops.get(i);
+            if (stats == null) {
+                continue;
+            }
+            sb.append(String.format("%-18s %9d %6d | %-36s | %-36s%n", operationName((byte) i),
+                stats.requests.sum(), stats.errors.sum(), stats.queue.summary(), stats.execution.summary()));
+        }
+        long frames = WRITE.getCount();
+        long flushCount = flushes.sum();
+        sb.append(String.format("Escrita us (fila+flush): %s | frames=%d, flushes=%d (%.1f frames/flush)%n",
+            WRITE.summary(), frames, flushCount, flushCount == 0 ? 0.0 : (double) frames / flushCount));
+        sb.append(String.format("Locks TimeSeriesManager: aquisições=%d, esperas leitura=%d [%s], escrita=%d [%s]%n",
+            lockAcquisitions.sum(), LOCK_READ_WAIT.getCount(), LOCK_READ_WAIT.summary(),
+            LOCK_WRITE_WAIT.getCount(), LOCK_WRITE_WAIT.summary()));
+        sb.append("Conexões: ativas=").append(activeConnections.get())
+            .append(", total=").append(totalConnections.sum());
+        return sb.toString();
+    }
+
+    public static String operationName(byte operation) {
+        switch (operation) {
+            case Protocol.OP_REGISTER: return "REGISTER";
+            case Protocol.OP_LOGIN: return "LOGIN";
+            case Protocol.OP_LOGOUT: return "LOGOUT";
+            case Protocol.OP_ADD_EVENT: return "ADD_EVENT";
+            case Protocol.OP_QUANTITY_SOLD: return "QUANTITY_SOLD";
+            case Protocol.OP_SALES_VOLUME: return "SALES_VOLUME";
+            case Protocol.OP_AVERAGE_PRICE: return "AVERAGE_PRICE";
+            case Protocol.OP_MAX_PRICE: return "MAX_PRICE";
+            case Protocol.OP_FILTER_EVENTS: return "FILTER_EVENTS";
+            case Protocol.OP_SIMULTANEOUS_SALES: return "SIMULTANEOUS";
+            case Protocol.OP_CONSECUTIVE_SALES: return "CONSECUTIVE";
+            case Protocol.OP_NEW_DAY: return "NEW_DAY";
+            case Protocol.OP_RESUME: return "RESUME";
+            case Protocol.OP_HELLO: return "HELLO";
+            case Protocol.OP_FILTER_EVENTS_STREAM: return "FILTER_STREAM";
+            case Protocol.OP_MULTI: return "MULTI";
+            default: return String.format("0x%02X", operation & 0xFF);
+        }
+    }
+
+    // ==================== HISTOGRAMA ====================
+
+    //Histograma log-linear de durações em nanossegundos (estilo HDR): cada potência de 2 está dividida
+    //em 16 baldes iguais, por isso um percentil tem um erro relativo de no máximo ~6%, de 1 ns a horas,
+    //com memória fixa (~8 KB). Registar é um incremento atómico no balde e nos totais.
+    public static final class Histogram {
+        private static final int SUB_BITS = 4;
+        private static final int SUB_COUNT = 1 << SUB_BITS; // Baldes por potência de 2
+        private static final int BUCKETS = (64 - SUB_BITS) * SUB_COUNT;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        public void record(long nanos) {
+            long value = Math.max(0, nanos);
+            counts.incrementAndGet(bucket(value));
+            count.increment();
+            sum.add(value);
+            if (value > max.get()) {
+                max.accumulateAndGet(value, Math::max);
+            }
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public long getMax() {
+            return max.get();
+        }
+
+        public double getMean() {
+            long n = count.sum();
+            return n == 0 ? 0.0 : (double) sum.sum() / n;
+        }
+
+        //Valor (limite superior do balde) abaixo do qual ficam pelo menos p (0..1) dos registos
+        public long percentile(double p) {
+            long[] snapshot = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                snapshot[i] = counts.get(i);
+                total += snapshot[i];
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long target = Math.max(1, (long) Math.ceil(p * total));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += snapshot[i];
+                if (seen >= target) {
+                    return Math.min(upperBound(i), max.get());
+                }
+            }
+            return max.get();
+        }
+
+        public void reset() {
+            for (int i = 0; i < BUCKETS; i++) {
+                counts.set(i, 0);
+            }
+            count.reset();
+            sum.reset();
+            max.set(0);
+        }
+
+        //"média p50 p99 p99.9 máx" em microssegundos
+        public String summary() {
+            return String.format("%.1f %.1f %.1f %.1f %.1f", getMean() / 1000, percentile(0.50) / 1000.0,
+                percentile(0.99) / 1000.0, percentile(0.999) / 1000.0, getMax() / 1000.0);
+        }
+
+        // Valores < 16 têm um balde cada; acima, o expoente escolhe o grupo e os 4 bits seguintes o balde
+        static int bucket(long value) {
+            if (value < SUB_COUNT) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+            return (exponent - SUB_BITS + 1) * SUB_COUNT + sub;
+        }
+
+        static long upperBound(int bucket) {
+            if (bucket < SUB_COUNT) {
+                return bucket;
+            }
+            int exponent = bucket / SUB_COUNT + SUB_BITS - 1;
+            int sub = bucket % SUB_COUNT;
+            int shift = exponent - SUB_BITS;
+            return ((long) (SUB_COUNT + sub) << shift) + (1L << shift) - 1;
+        }
+    }
+}
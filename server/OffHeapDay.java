@@ -0,0 +1,220 @@
+package server;
+
+import geral.Protocol;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+//Dia selado guardado fora do heap, num ByteBuffer direto em formato colunar:
+//[id produto int x n][quantidade int x n][preço double x n][timestamp long x n].
+//Só o dicionário de produtos e os resumos por produto ficam no heap, por isso o GC não
+//tem de percorrer os eventos. A leitura é feita através de um cursor sobre as colunas.
+//A memória é libertada explicitamente com release() quando o dia sai da memória.
+public class OffHeapDay {
+    private static final int ROW_BYTES = 4 + 4 + 8 + 8;
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+
+    static {
+        // sun.misc.Unsafe.invokeCleaner liberta um buffer direto de imediato; sem ele fica para o GC
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe = field.get(null);
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            Log.warn("Libertação explícita de memória off-heap indisponível: " + e.getMessage());
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    private final int dayId;
+    private final int eventCount;
+    private final String[] products;
+    private final Map<String, Integer> productIds;
+    private final ProductSummary[] summaries;
+    private ByteBuffer data; // null depois de libertado
+
+    private OffHeapDay(int dayId, int eventCount, String[] products, Map<String, Integer> productIds,
+                       ByteBuffer data) {
+        this.dayId = dayId;
+        this.eventCount = eventCount;
+        this.products = products;
+        this.productIds = productIds;
+        this.data = data;
+        this.summaries = computeSummaries();
+    }
+
+    //Copia os eventos de um dia (já fechado) para fora do heap
+    public static OffHeapDay fromEvents(int dayId, List<Protocol.Event> events) {
+        int n = events.size();
+        Map<String, Integer> ids = new HashMap<>();
+        List<String> dictionary = new ArrayList<>();
+        ByteBuffer data = ByteBuffer.allocateDirect(Math.max(1, n * ROW_BYTES));
+        int quantityCol = 4 * n;
+        int priceCol = 8 * n;
+        int timestampCol = 16 * n;
+        for (int i = 0; i < n; i++) {
+            Protocol.Event event = events.get(i);
+            Integer id = ids.get(event.getProduct());
+            if (id == null) {
+                id = dictionary.size();
+                ids.put(event.getProduct(), id);
+                dictionary.add(event.getProduct());
+            }
+            data.putInt(4 * i, id);
+            data.putInt(quantityCol + 4 * i, event.getQuantity());
+            data.putDouble(priceCol + 8 * i, event.getPrice());
+            data.putLong(timestampCol + 8 * i, event.getTimestamp());
+        }
+        return new OffHeapDay(dayId, n, dictionary.toArray(new String[0]), ids, data);
+    }
+
+    public int getDayId() {
+        return dayId;
+    }
+
+    public int getEventCount() {
+        return eventCount;
+    }
+
+    //Bytes ocupados fora do heap
+    public long getSizeBytes() {
+        return data == null ? 0 : data.capacity();
+    }
+
+    //Cursor sobre todos os eventos do dia, pela ordem original
+    public Cursor cursor() {
+        if (data == null) {
+            throw new IllegalStateException("Dia " + dayId + " já foi libertado");
+        }
+        return new Cursor();
+    }
+
+    //Resumo de vendas de um produto (calculado uma vez, ao criar o dia)
+    public ProductSummary summary(String product) {
+        Integer id = productIds.get(product);
+        return id == null ? ProductSummary.EMPTY : summaries[id];
+    }
+
+    //Eventos dos produtos pedidos (ou todos, se products for null ou vazio)
+    public List<Protocol.Event> filter(Collection<String> wantedProducts) {
+        List<Protocol.Event> result = new ArrayList<>();
+        filter(wantedProducts, 0, Integer.MAX_VALUE, result);
+        return result;
+    }
+
+    //Leitura por partes do filtro: acrescenta a result até maxEvents eventos a partir da linha fromRow.
+    //Retorna a linha onde a leitura seguinte deve começar (getEventCount() no fim).
+    public int filter(Collection<String> wantedProducts, int fromRow, int maxEvents, List<Protocol.Event> result) {
+        boolean all = wantedProducts == null || wantedProducts.isEmpty();
+        boolean[] wanted = new boolean[products.length];
+        boolean any = all;
+        for (int p = 0; p < products.length; p++) {
+            wanted[p] = all || wantedProducts.contains(products[p]);
+            any |= wanted[p];
+        }
+
+        if (!any) {
+            return eventCount;
+        }
+        Cursor cursor = cursor();
+        cursor.row = Math.max(fromRow, 0) - 1;
+        int added = 0;
+        while (added < maxEvents && cursor.next()) {
+            if (wanted[cursor.productId()]) {
+                result.add(cursor.toEvent());
+                added++;
+            }
+        }
+        return Math.min(cursor.row + 1, eventCount);
+    }
+
+    public List<Protocol.Event> toEvents() {
+        return filter(null);
+    }
+
+    //Liberta a memória off-heap de imediato (se possível; caso contrário fica para o GC).
+    //Quem chama garante que nenhum cursor está a ser usado (o TimeSeriesManager faz isto com o write lock).
+    public void release() {
+        ByteBuffer buffer = data;
+        data = null;
+        if (buffer == null || INVOKE_CLEANER == null) {
+            return;
+        }
+        try {
+            INVOKE_CLEANER.invoke(UNSAFE, buffer);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            Log.warn("Erro ao libertar dia " + dayId + ": " + e.getMessage());
+        }
+    }
+
+    private ProductSummary[] computeSummaries() {
+        int[] counts = new int[products.length];
+        long[] quantities = new long[products.length];
+        double[] volumes = new double[products.length];
+        double[] maxPrices = new double[products.length];
+        Arrays.fill(maxPrices, Double.NEGATIVE_INFINITY);
+
+        Cursor cursor = cursor();
+        while (cursor.next()) {
+            int id = cursor.productId();
+            double price = cursor.price();
+            counts[id]++;
+            quantities[id] += cursor.quantity();
+            volumes[id] += cursor.quantity() * price;
+            maxPrices[id] = Math.max(maxPrices[id], price);
+        }
+
+        ProductSummary[] result = new ProductSummary[products.length];
+        for (int p = 0; p < products.length; p++) {
+            result[p] = new ProductSummary(counts[p], quantities[p], volumes[p], maxPrices[p]);
+        }
+        return result;
+    }
+
+    //Cursor sobre as colunas: next() avança uma linha e os getters leem diretamente do buffer.
+    //Não cria objetos por evento (exceto em toEvent()).
+    public class Cursor {
+        private final ByteBuffer buffer = data;
+        private int row = -1;
+
+        public boolean next() {
+            return ++row < eventCount;
+        }
+
+        public int productId() {
+            return buffer.getInt(4 * row);
+        }
+
+        public String product() {
+            return products[productId()];
+        }
+
+        public int quantity() {
+            return buffer.getInt(4 * eventCount + 4 * row);
+        }
+
+        public double price() {
+            return buffer.getDouble(8 * eventCount + 8 * row);
+        }
+
+        public long timestamp() {
+            return buffer.getLong(16 * eventCount + 8 * row);
+        }
+
+        public Protocol.Event toEvent() {
+            return new Protocol.Event(product(), quantity(), price(), timestamp());
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package server;
+
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.security.spec.KeySpec;
+import java.util.Arrays;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+//Derivação de passwords com PBKDF2 (HMAC-SHA256, do JDK) e um salt aleatório por utilizador.
+//O número de iterações fica guardado com cada utilizador, por isso pode ser aumentado
+//(auth.iterations) sem invalidar as passwords já guardadas.
+//É deliberadamente caro: as verificações correm num executor próprio (ver Authentication).
+public final class PasswordHasher {
+    public static final int DEFAULT_ITERATIONS = Integer.getInteger("auth.iterations", 60_000);
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BITS = 256;
+    private static final SecureRandom random = new SecureRandom();
+
+    private PasswordHasher() {
+    }
+
+    public static byte[] newSalt() {
+        byte[] salt = new byte[SALT_BYTES];
+        random.nextBytes(salt);
+        return salt;
+    }
+
+    public static byte[] hash(String password, byte[] salt, int iterations) {
+        char[] chars = password.toCharArray();
+        KeySpec spec = new PBEKeySpec(chars, salt, iterations, HASH_BITS);
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("PBKDF2 indisponível: " + e.getMessage(), e);
+        } finally {
+            Arrays.fill(chars, '\0');
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package server;
+
+//Resumo das vendas de um produto num dia: número de vendas, quantidade total, volume e preço máximo.
+//Chega para responder a todas as agregações sem percorrer os eventos.
+public class ProductSummary {
+    public static final ProductSummary EMPTY = new ProductSummary(0, 0, 0.0, 0.0);
+
+    public final int count;
+    public final long quantity;
+    public final double volume;
+    public final double maxPrice;
+
+    public ProductSummary(int count, long quantity, double volume, double maxPrice) {
+        this.count = count;
+        this.quantity = quantity;
+        this.volume = volume;
+        this.maxPrice = maxPrice;
+    }
+}
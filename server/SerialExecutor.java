@@ -0,0 +1,138 @@
+package server;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+//Executor em série (mailbox ao estilo de um ator) por cima da ThreadPool.
+//As tarefas submetidas correm uma de cada vez, pela ordem de chegada, mas em qualquer
+//worker da pool: no máximo uma tarefa desta mailbox está agendada na pool em cada instante.
+//Uma tarefa assíncrona (executeAsync) suspende a mailbox até o seu resultado completar,
+//sem ocupar nenhum worker enquanto espera.
+public class SerialExecutor {
+    private final ThreadPool pool;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ArrayDeque<Runnable> mailbox = new ArrayDeque<>();
+    private boolean scheduled = false; // Há um worker a drenar (ou agendado para drenar) a mailbox
+
+    public SerialExecutor(ThreadPool pool) {
+        this.pool = pool;
+    }
+
+    //Coloca a tarefa na mailbox e agenda a drenagem se ninguém o estiver a fazer
+    public void execute(Runnable task) throws InterruptedException {
+        boolean schedule;
+        lock.lock();
+        try {
+            mailbox.add(task);
+            schedule = !scheduled;
+            scheduled = true;
+        } finally {
+            lock.unlock();
+        }
+        if (schedule) {
+            try {
+                pool.execute(this::drain);
+            } catch (InterruptedException | RuntimeException e) {
+                // A drenagem não ficou agendada: desfazer, senão a mailbox nunca mais corria nada
+                // (tarefas que outra thread tenha juntado entretanto correm com o próximo execute)
+                lock.lock();
+                try {
+                    mailbox.removeLastOccurrence(task);
+                    scheduled = false;
+                } finally {
+                    lock.unlock();
+                }
+                throw e;
+            }
+        }
+    }
+
+    //Coloca na mailbox uma tarefa que devolve um resultado futuro; as tarefas seguintes só correm
+    //depois de ele completar (com sucesso ou erro)
+    public void executeAsync(Supplier<? extends CompletionStage<?>> task) throws InterruptedException {
+        execute(new AsyncTask(task));
+    }
+
+    //Indica se todas as tarefas submetidas já terminaram
+    public boolean isIdle() {
+        lock.lock();
+        try {
+            return !scheduled;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //Corre as tarefas da mailbox por ordem até ficar vazia
+    private void drain() {
+        while (true) {
+            Runnable task;
+            lock.lock();
+            try {
+                task = mailbox.poll();
+                if (task == null) {
+                    scheduled = false;
+                    return;
+                }
+            } finally {
+                lock.unlock();
+            }
+
+            try {
+                if (task instanceof AsyncTask) {
+                    CompletionStage<?> stage = ((AsyncTask) task).start();
+                    if (!stage.toCompletableFuture().isDone()) {
+                        // A mailbox continua "agendada" e retoma quando o resultado chegar
+                        stage.whenComplete((result, error) -> resume());
+                        return;
+                    }
+                } else {
+                    task.run();
+                }
+            } catch (RuntimeException e) {
+                Log.error("Erro na execução da tarefa: " + e.getMessage());
+            }
+        }
+    }
+
+    //Volta a agendar a drenagem depois de uma tarefa assíncrona completar
+    private void resume() {
+        if (pool.tryExecute(this::drain)) {
+            return;
+        }
+        try {
+            pool.execute(this::drain);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            drain();
+        } catch (IllegalStateException e) {
+            // Pool parada (servidor a encerrar): a mailbox deixa de estar agendada, para que
+            // um execute seguinte falhe em vez de ficar só na fila
+            lock.lock();
+            try {
+                scheduled = false;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private static class AsyncTask implements Runnable {
+        private final Supplier<? extends CompletionStage<?>> task;
+
+        AsyncTask(Supplier<? extends CompletionStage<?>> task) {
+            this.task = task;
+        }
+
+        CompletionStage<?> start() {
+            return task.get();
+        }
+
+        @Override
+        public void run() {
+            start();
+        }
+    }
+}
@@ -1,10 +1,15 @@
 package server;
 
+import geral.BufferPool;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import server.persistence.DayCache;
 import server.persistence.PersistenceManager;
 
 
@@ -12,10 +17,14 @@ public class ServerMain {
     private static final int DEFAULT_PORT = 12345;
     private static final int DEFAULT_D = 30; // Dias históricos
     private static final int DEFAULT_S = 10; // Séries em cache
+    private static final int DEFAULT_POOL_THREADS = 20;
+    private static final int DEFAULT_POOL_CAPACITY = 16_384; // Limite global de tarefas pendentes
+    private static final long METRICS_DUMP_SECONDS = Long.getLong("metrics.dumpSeconds", 0); // 0 = sem dumps
     
     private final int port;
     private final ServerManager serverManager;
     private final Authentication auth;
+    private final SessionManager sessions;
     private TimeSeriesManager tsManager;
     private final AggregationService aggregationService;
     private final ThreadPool threadPool;
@@ -24,9 +33,14 @@ public class ServerMain {
     private ServerSocket serverSocket;
     
     public ServerMain(int port, int maxDays, int maxSeries) {
+        this(port, maxDays, maxSeries, DEFAULT_POOL_THREADS, DEFAULT_POOL_CAPACITY);
+    }
+
+    public ServerMain(int port, int maxDays, int maxSeries, int poolThreads, int poolCapacity) {
         this.port = port;
-        this.auth = new Authentication();
         this.persistenceManager = new PersistenceManager();
+        this.auth = Authentication.fromSystemProperties(persistenceManager.getUserPersistence());
+        this.sessions = SessionManager.fromSystemProperties();
         
         // Tentar carregar dados persistidos
         try {
@@ -39,8 +53,8 @@ public class ServerMain {
         
         this.aggregationService = new AggregationService(tsManager);
         this.tsManager.setAggregationService(aggregationService);
-        this.serverManager = new ServerManager(auth, tsManager, aggregationService);
-        this.threadPool = new ThreadPool(20);
+        this.serverManager = new ServerManager(auth, sessions, tsManager, aggregationService);
+        this.threadPool = new ThreadPool(poolThreads, poolCapacity, ThreadPool.RejectionPolicy.BLOCK);
         this.running = new AtomicBoolean(false);
     }
     
@@ -53,8 +67,10 @@ public class ServerMain {
         serverSocket = new ServerSocket(port);
         running.set(true);
         
-        System.out.println("Servidor iniciado na porta " + port);
-        System.out.println("Configuração: D=" + tsManager.getMaxDays());
+        System.out.println("Servidor iniciado na porta " + port + " ("
+            + ManagementFactory.getRuntimeMXBean().getUptime() + " ms após o arranque da JVM)");
+        System.out.println("Configuração: D=" + tsManager.getMaxDays()
+            + ", threads=" + threadPool.getThreadCount() + ", fila=" + threadPool.getCapacity());
         System.out.println("Comandos: 'newday' para simular novo dia, 'stats' para estatísticas, 'quit' para sair");
         
         // Thread para aceitar conexões
@@ -64,6 +80,26 @@ public class ServerMain {
         // Thread para comandos do servidor
         Thread commandThread = new Thread(() -> handleCommands());
         commandThread.start();
+
+        if (METRICS_DUMP_SECONDS > 0) {
+            Thread dumpThread = new Thread(this::dumpMetrics, "Metrics-Dump");
+            dumpThread.setDaemon(true);
+            dumpThread.start();
+        }
+    }
+
+    //Escreve periodicamente as estatísticas no log (metrics.dumpSeconds)
+    private void dumpMetrics() {
+        while (running.get()) {
+            try {
+                Thread.sleep(METRICS_DUMP_SECONDS * 1000);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (running.get()) {
+                Log.info("Snapshot de métricas:\n" + statistics());
+            }
+        }
     }
     
     //Aceita conexões de clientes
@@ -98,6 +134,16 @@ public class ServerMain {
         while (running.get()) {
             try {
                 String command = scanner.nextLine().trim().toLowerCase();
+
+                if (command.startsWith("loglevel")) {
+                    configureLogging(command.split("\\s+"));
+                    continue;
+                }
+                if (command.equals("stats reset")) {
+                    Metrics.reset();
+                    System.out.println("Métricas de pedidos reiniciadas");
+                    continue;
+                }
                 
                 switch (command) {
                     case "newday":
@@ -135,13 +181,21 @@ public class ServerMain {
     
     /**
      * Simula o início de um novo dia.
+     * A troca de dia é imediata; espera-se depois que o dia fechado fique escrito em disco.
      */
     private void simulateNewDay() {
         int oldDay = tsManager.getCurrentDayId();
-        tsManager.newDay();
+        CompletableFuture<Void> sealed = tsManager.newDay();
         int newDay = tsManager.getCurrentDayId();
         
         System.out.println("Novo dia simulado: " + oldDay + " -> " + newDay);
+
+        try {
+            sealed.join();
+            System.out.println("Dia " + oldDay + " guardado em disco");
+        } catch (CompletionException e) {
+            System.err.println("Erro ao guardar dia " + oldDay + ": " + e.getCause().getMessage());
+        }
         
         // Guardar automaticamente após mudança de dia
         try {
@@ -163,18 +217,81 @@ public class ServerMain {
     //Imprime estatísticas do servidor
     private void printStatistics() {
         System.out.println("\n=== Estatísticas do Servidor ===");
-        System.out.println("Utilizadores registados: " + serverManager.getUserCount());
-        System.out.println("Dia corrente: " + tsManager.getCurrentDayId());
-        System.out.println("Eventos hoje: " + tsManager.getCurrentDayEventCount());
-        System.out.println("Dias históricos: " + tsManager.getHistoricalDayCount() + "/" + tsManager.getMaxDays());
+        System.out.println(statistics());
         System.out.println("================================\n");
     }
+
+    //Estado do servidor e métricas acumuladas (desde o arranque ou o último 'stats reset')
+    private String statistics() {
+        StringBuilder sb = new StringBuilder(4096);
+        sb.append("Utilizadores registados: ").append(serverManager.getUserCount()).append('\n');
+        sb.append("Sessões: ativas=").append(sessions.size()).append(", criadas=").append(sessions.getCreatedCount())
+            .append(", retomadas=").append(sessions.getResumedCount())
+            .append(", expiradas=").append(sessions.getExpiredCount()).append('\n');
+        sb.append("Dia corrente: ").append(tsManager.getCurrentDayId()).append('\n');
+        sb.append("Eventos hoje: ").append(tsManager.getCurrentDayEventCount()).append('\n');
+        sb.append("Dias históricos: ").append(tsManager.getHistoricalDayCount()).append('/')
+            .append(tsManager.getMaxDays()).append('\n');
+        sb.append("Pool: ").append(threadPool.getThreadCount()).append(" threads, fila ")
+            .append(threadPool.getQueueDepth()).append('/').append(threadPool.getCapacity()).append('\n');
+        sb.append("Tarefas: submetidas=").append(threadPool.getSubmittedCount())
+            .append(", concluídas=").append(threadPool.getCompletedCount())
+            .append(", rejeitadas=").append(threadPool.getRejectedCount()).append('\n');
+        sb.append(String.format("Espera na fila: média=%.1fus, máx=%.1fus | Execução média=%.1fus%n",
+            threadPool.getAverageWaitMicros(), threadPool.getMaxWaitMicros(), threadPool.getAverageRunMicros()));
+        ThreadPool verifier = auth.getVerifier();
+        sb.append(String.format("Verificação de passwords: %d threads, fila %d/%d, recusadas=%d, média=%.1fms (espera %.1fms)%n",
+            verifier.getThreadCount(), verifier.getQueueDepth(), verifier.getCapacity(), verifier.getRejectedCount(),
+            verifier.getAverageRunMicros() / 1000, verifier.getAverageWaitMicros() / 1000));
+        sb.append("Memória (eventos): dia corrente (heap) ").append(tsManager.getCurrentDayBytes() / 1024)
+            .append('/').append(tsManager.getMemoryBudgetBytes() / 1024)
+            .append(" KiB, histórico off-heap ").append(tsManager.getInMemoryDayCount()).append(" dias ")
+            .append(tsManager.getHistoricalBytes() / 1024).append('/').append(tsManager.getOffHeapBudgetBytes() / 1024)
+            .append(" KiB, dias retirados=").append(tsManager.getMemoryEvictionCount()).append('\n');
+        DayCache dayCache = persistenceManager.getTimeSeriesPersistence().getDayCache();
+        sb.append("Cache de dias: ").append(dayCache.size()).append(" dias, ")
+            .append(dayCache.getUsedBytes() / 1024).append('/').append(dayCache.getMaxBytes() / 1024)
+            .append(" KiB, acertos=").append(dayCache.getHitCount()).append(", falhas=").append(dayCache.getMissCount())
+            .append(" (").append(hitRatio(dayCache.getHitCount(), dayCache.getMissCount()))
+            .append("), removidos=").append(dayCache.getEvictionCount()).append('\n');
+        long aggregationHits = aggregationService.getCacheHitCount();
+        long aggregationMisses = aggregationService.getCacheMissCount();
+        sb.append("Cache de agregações: acertos=").append(aggregationHits).append(", falhas=")
+            .append(aggregationMisses).append(" (").append(hitRatio(aggregationHits, aggregationMisses)).append(")\n");
+        sb.append("Buffers: alocados=").append(BufferPool.getAllocatedCount())
+            .append(", reutilizados=").append(BufferPool.getReusedCount()).append('\n');
+        sb.append(Metrics.snapshot());
+        return sb.toString();
+    }
+
+    private static String hitRatio(long hits, long misses) {
+        long total = hits + misses;
+        return total == 0 ? "-" : String.format("%.1f%%", 100.0 * hits / total);
+    }
     
+    //Altera o nível de log e, opcionalmente, a amostragem dos logs por pedido: loglevel <nível> [1-em-N]
+    private void configureLogging(String[] parts) {
+        if (parts.length >= 2) {
+            Log.setLevel(Log.parseLevel(parts[1], Log.getLevel()));
+        }
+        if (parts.length >= 3) {
+            try {
+                Log.setRequestSampleRate(Integer.parseInt(parts[2]));
+            } catch (NumberFormatException e) {
+                System.out.println("Amostragem inválida: " + parts[2]);
+            }
+        }
+        System.out.println("Log: nível=" + Log.getLevel() + ", pedidos 1 em " + Log.getRequestSampleRate()
+            + ", descartadas=" + Log.getDroppedCount());
+    }
+
     //Imprime ajuda dos comandos
     private void printHelp() {
         System.out.println("\n=== Comandos Disponíveis ===");
         System.out.println("newday  - Simula o início de um novo dia");
-        System.out.println("stats   - Mostra estatísticas do servidor");
+        System.out.println("stats   - Mostra estatísticas do servidor e latências por operação");
+        System.out.println("stats reset - Reinicia as métricas de pedidos");
+        System.out.println("loglevel <debug|info|warn|error> [N] - Nível de log (e registar 1 em N pedidos)");
         System.out.println("help    - Mostra esta ajuda");
         System.out.println("quit    - Encerra o servidor");
         System.out.println("============================\n");
@@ -206,6 +323,9 @@ public class ServerMain {
         }
         
         threadPool.stop();
+        auth.shutdown();
+        sessions.shutdown();
+        Log.shutdown(1000); // Escreve as últimas mensagens antes de a JVM sair
         System.out.println("Servidor encerrado");
     }
 
@@ -214,6 +334,8 @@ public class ServerMain {
         int port = DEFAULT_PORT;
         int maxDays = DEFAULT_D;
         int maxSeries = DEFAULT_S;
+        int poolThreads = DEFAULT_POOL_THREADS;
+        int poolCapacity = DEFAULT_POOL_CAPACITY;
         
         // Parse argumentos
         if (args.length >= 1) {
@@ -239,9 +361,25 @@ public class ServerMain {
                 System.err.println("S inválido, usando " + DEFAULT_S);
             }
         }
+
+        if (args.length >= 4) {
+            try {
+                poolThreads = Integer.parseInt(args[3]);
+            } catch (NumberFormatException e) {
+                System.err.println("Número de threads inválido, usando " + DEFAULT_POOL_THREADS);
+            }
+        }
+
+        if (args.length >= 5) {
+            try {
+                poolCapacity = Integer.parseInt(args[4]);
+            } catch (NumberFormatException e) {
+                System.err.println("Capacidade da fila inválida, usando " + DEFAULT_POOL_CAPACITY);
+            }
+        }
         
         try {
-            ServerMain server = new ServerMain(port, maxDays, maxSeries);
+            ServerMain server = new ServerMain(port, maxDays, maxSeries, poolThreads, poolCapacity);
             server.start();
         } catch (IOException e) {
             System.err.println("Erro ao iniciar servidor: " + e.getMessage());
@@ -1,17 +1,22 @@
 package server;
 
+import java.io.IOException;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import geral.Protocol;
 
 // Facade principal do servidor.
-// Centraliza o acesso a todos os serviços (Autenticação, TimeSeries, Agregação).
+// Centraliza o acesso a todos os serviços (Autenticação, Sessões, TimeSeries, Agregação).
 public class ServerManager {
     private final Authentication auth;
+    private final SessionManager sessions;
     private final TimeSeriesManager tsManager;
     private final AggregationService aggregationService;
     
-    public ServerManager(Authentication auth, TimeSeriesManager tsManager, AggregationService aggregationService) {
+    public ServerManager(Authentication auth, SessionManager sessions, TimeSeriesManager tsManager,
+                         AggregationService aggregationService) {
         this.auth = auth;
+        this.sessions = sessions;
         this.tsManager = tsManager;
         this.aggregationService = aggregationService;
     }
@@ -26,16 +31,47 @@ public class ServerManager {
         return auth.authenticate(username, password);
     }
     
+    // Versões que correm o PBKDF2 no executor de verificação (ver Authentication)
+    public CompletableFuture<Boolean> registerAsync(String username, String password) {
+        return auth.registerAsync(username, password);
+    }
+    
+    public CompletableFuture<User> authenticateAsync(String username, String password) {
+        return auth.authenticateAsync(username, password);
+    }
+    
     public int getUserCount() {
         return auth.getUserCount();
     }
     
+    // ==================== SESSÕES ====================
+    
+    public String createSession(User user) {
+        return sessions.create(user);
+    }
+    
+    public User resumeSession(String token) {
+        return sessions.resume(token);
+    }
+    
+    public void detachSession(String token) {
+        sessions.detach(token);
+    }
+    
+    public void invalidateSession(String token) {
+        sessions.invalidate(token);
+    }
+    
     // ==================== TIME SERIES ====================
     
     public void addEvent(String product, int quantity, double price) {
         tsManager.addEvent(product, quantity, price);
     }
     
+    public TimeSeriesManager.FilterScan openFilterScan(List<String> products, int dayOffset) throws IOException {
+        return tsManager.openFilterScan(products, dayOffset);
+    }
+
     public List<Protocol.Event> getFilteredEvents(List<String> products, Integer dayOffset) {
         return tsManager.getFilteredEvents(products, dayOffset);
     }
@@ -0,0 +1,151 @@
+package server;
+
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+//Tabela de sessões: token emitido no login -> utilizador autenticado.
+//Um cliente que perdeu a conexão retoma a sessão com um único pedido (OP_RESUME), sem voltar
+//a enviar credenciais nem passar pela Authentication.
+//Uma sessão não expira enquanto houver conexões a usá-la; quando a última se desliga fica válida
+//durante o TTL (para sobreviver a quebras curtas) e depois é removida por uma thread de limpeza.
+//Todas as alterações a uma sessão são feitas dentro de compute* do ConcurrentHashMap, por isso
+//retomar e expirar a mesma sessão nunca se cruzam.
+public class SessionManager {
+    private static final int TOKEN_BYTES = 16; // 128 bits
+    private static final long MAX_SWEEP_INTERVAL_MILLIS = 30_000;
+
+    private final long ttlNanos;
+    private final ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<>();
+    private final SecureRandom random = new SecureRandom();
+    private final ScheduledExecutorService sweeper;
+
+    private final LongAdder created = new LongAdder();
+    private final LongAdder resumed = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+
+    //Estado de uma sessão; só é lido e alterado dentro do lock do ConcurrentHashMap para o token
+    private static class Session {
+        final User user;
+        int attached;   // Conexões a usar a sessão
+        long expiresAt; // System.nanoTime() a partir do qual a sessão expira (se attached == 0)
+
+        Session(User user) {
+            this.user = user;
+            this.attached = 1;
+        }
+
+        boolean isExpired(long now) {
+            return attached == 0 && now - expiresAt >= 0;
+        }
+    }
+
+    public SessionManager(long ttlMillis) {
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "Session-Sweeper");
+            t.setDaemon(true);
+            return t;
+        });
+        long interval = Math.max(1, Math.min(ttlMillis, MAX_SWEEP_INTERVAL_MILLIS));
+        sweeper.scheduleWithFixedDelay(this::sweep, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    //session.ttlSeconds: tempo que uma sessão sem conexões continua válida (por omissão 300)
+    public static SessionManager fromSystemProperties() {
+        long seconds = Long.getLong("session.ttlSeconds", 300);
+        return new SessionManager(TimeUnit.SECONDS.toMillis(Math.max(1, seconds)));
+    }
+
+    //Cria uma sessão para o utilizador, já associada à conexão que fez login
+    public String create(User user) {
+        byte[] bytes = new byte[TOKEN_BYTES];
+        random.nextBytes(bytes);
+        String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+        sessions.put(token, new Session(user));
+        created.increment();
+        return token;
+    }
+
+    //Associa uma nova conexão a uma sessão existente.
+    //Retorna o utilizador da sessão, ou null se o token não existir ou tiver expirado.
+    public User resume(String token) {
+        if (token == null) {
+            return null;
+        }
+        long now = System.nanoTime();
+        Session session = sessions.computeIfPresent(token, (key, s) -> {
+            if (s.isExpired(now)) {
+                expired.increment();
+                return null;
+            }
+            s.attached++;
+            return s;
+        });
+        if (session == null) {
+            return null;
+        }
+        resumed.increment();
+        return session.user;
+    }
+
+    //Desassocia uma conexão (fechada ou que mudou de sessão); sem conexões, começa a contar o TTL
+    public void detach(String token) {
+        if (token == null) {
+            return;
+        }
+        long now = System.nanoTime();
+        sessions.computeIfPresent(token, (key, s) -> {
+            if (--s.attached <= 0) {
+                s.attached = 0;
+                s.expiresAt = now + ttlNanos;
+            }
+            return s;
+        });
+    }
+
+    //Termina a sessão (logout): o token deixa de poder ser retomado
+    public void invalidate(String token) {
+        if (token != null) {
+            sessions.remove(token);
+        }
+    }
+
+    public int size() {
+        return sessions.size();
+    }
+
+    public long getCreatedCount() {
+        return created.sum();
+    }
+
+    public long getResumedCount() {
+        return resumed.sum();
+    }
+
+    public long getExpiredCount() {
+        return expired.sum();
+    }
+
+    public void shutdown() {
+        sweeper.shutdownNow();
+    }
+
+    //Remove as sessões sem conexões cujo TTL já passou
+    private void sweep() {
+        long now = System.nanoTime();
+        for (String token : sessions.keySet()) {
+            sessions.computeIfPresent(token, (key, s) -> {
+                if (s.isExpired(now)) {
+                    expired.increment();
+                    return null;
+                }
+                return s;
+            });
+        }
+    }
+}
@@ -1,95 +1,304 @@
 package server;
 
-import java.util.LinkedList;
-import java.util.List;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 
+//Pool de threads com fila limitada sem locks (anel MPMC com números de sequência).
+//Submeter e retirar tarefas usa apenas CAS sobre dois contadores; não há lock global
+//nem alocação de nós por tarefa. Workers sem trabalho fazem uma espera ativa curta e depois "estacionam".
 public class ThreadPool {
+
+    // O que fazer quando a fila está cheia
+    public enum RejectionPolicy {
+        BLOCK,       // Quem submete espera por espaço (backpressure)
+        ABORT,       // Lança RejectedExecutionException
+        CALLER_RUNS  // A tarefa corre na thread de quem submete
+    }
+
+    private static final int SPIN_TRIES = 128;
+    private static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+    private static final long BLOCK_BACKOFF_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    private final String name;
     private final int nThreads;
-    private final List<Runnable> queue;
+    private final int capacity;
+    private final RejectionPolicy policy;
     private final Worker[] workers;
-    
-    // Primitivas de Sincronização
-    private final ReentrantLock lock = new ReentrantLock();
-    private final Condition notEmpty = lock.newCondition();
-    
+
+    // Anel de tarefas: cada posição tem um número de sequência que indica se está livre ou ocupada
+    private final int mask;
+    private final Runnable[] tasks;
+    private final long[] enqueueNanos; // Instante de submissão (para medir espera na fila)
+    private final AtomicLongArray sequence;
+    private final AtomicLong enqueuePos = new AtomicLong();
+    private final AtomicLong dequeuePos = new AtomicLong();
+
+    private final AtomicInteger idleWorkers = new AtomicInteger();
     private volatile boolean isStopped = false;
 
-    public ThreadPool(int nThreads) {
+    // Métricas
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder totalWaitNanos = new LongAdder();
+    private final LongAdder totalRunNanos = new LongAdder();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+
+    public ThreadPool(int nThreads, int capacity) {
+        this(nThreads, capacity, RejectionPolicy.BLOCK);
+    }
+
+    public ThreadPool(int nThreads, int capacity, RejectionPolicy policy) {
+        this("Pool", nThreads, capacity, policy);
+    }
+
+    //A capacidade é arredondada para a potência de 2 seguinte; as threads chamam-se name-Worker-i
+    public ThreadPool(String name, int nThreads, int capacity, RejectionPolicy policy) {
+        if (nThreads < 1) throw new IllegalArgumentException("nThreads >= 1");
+        if (capacity < 1) throw new IllegalArgumentException("capacity >= 1");
+        this.name = name;
         this.nThreads = nThreads;
-        this.queue = new LinkedList<>();
+        this.capacity = nextPowerOfTwo(capacity);
+        this.policy = policy;
+        this.mask = this.capacity - 1;
+        this.tasks = new Runnable[this.capacity];
+        this.enqueueNanos = new long[this.capacity];
+        this.sequence = new AtomicLongArray(this.capacity);
+        for (int i = 0; i < this.capacity; i++) {
+            sequence.set(i, i);
+        }
+
+        // Inicializa e arranca as threads
         this.workers = new Worker[nThreads];
+        for (int i = 0; i < nThreads; i++) {
+            workers[i] = new Worker(i);
+        }
+        for (Worker worker : workers) {
+            worker.start();
+        }
+    }
 
-        lock.lock();
-        try {
-            // Inicializa e arranca as threads
-            for (int i = 0; i < nThreads; i++) {
-                workers[i] = new Worker();
-                workers[i].start();
+    //Submete uma tarefa. Com a fila cheia aplica a política de rejeição configurada;
+    //com BLOCK as threads de leitura das conexões deixam de ler do socket até haver espaço.
+    public void execute(Runnable task) throws InterruptedException {
+        if (isStopped) {
+            throw new IllegalStateException("ThreadPool is stopped");
+        }
+        while (!offer(task)) {
+            switch (policy) {
+                case ABORT:
+                    rejected.increment();
+                    throw new RejectedExecutionException("Fila da ThreadPool cheia");
+                case CALLER_RUNS:
+                    rejected.increment();
+                    runTask(task, System.nanoTime());
+                    return;
+                case BLOCK:
+                default:
+                    LockSupport.parkNanos(this, BLOCK_BACKOFF_NANOS);
+                    if (Thread.interrupted()) throw new InterruptedException();
+                    if (isStopped) throw new IllegalStateException("ThreadPool is stopped");
             }
-        } finally {
-            lock.unlock();
         }
+        submitted.increment();
+        wakeIdleWorker();
     }
 
-    public void execute(Runnable task) {
-        lock.lock();
-        try {
-            if (isStopped) {
-                throw new IllegalStateException("ThreadPool is stopped");
+    //Tenta submeter sem bloquear nem aplicar a política de rejeição.
+    //Retorna false se a fila estiver cheia (quem chama decide o que fazer com a tarefa).
+    public boolean tryExecute(Runnable task) {
+        if (isStopped || !offer(task)) {
+            return false;
+        }
+        submitted.increment();
+        wakeIdleWorker();
+        return true;
+    }
+
+    public void stop() {
+        isStopped = true;
+        // Acordar todos os workers para verem que a pool parou e terminarem (depois de esvaziar a fila).
+        for (Worker worker : workers) {
+            LockSupport.unpark(worker);
+        }
+    }
+
+    private static int nextPowerOfTwo(int n) {
+        int p = 1;
+        while (p < n) {
+            p <<= 1;
+        }
+        return p;
+    }
+
+    // ==================== MÉTRICAS ====================
+
+    public int getThreadCount() {
+        return nThreads;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    //Número aproximado de tarefas à espera na fila
+    public int getQueueDepth() {
+        long depth = enqueuePos.get() - dequeuePos.get();
+        return (int) Math.max(0, Math.min(depth, capacity));
+    }
+
+    public long getSubmittedCount() {
+        return submitted.sum();
+    }
+
+    public long getCompletedCount() {
+        return completed.sum();
+    }
+
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    //Tempo médio de espera na fila (microssegundos)
+    public double getAverageWaitMicros() {
+        long n = completed.sum();
+        return n == 0 ? 0.0 : totalWaitNanos.sum() / 1000.0 / n;
+    }
+
+    public double getMaxWaitMicros() {
+        return maxWaitNanos.get() / 1000.0;
+    }
+
+    //Tempo médio de execução de uma tarefa (microssegundos)
+    public double getAverageRunMicros() {
+        long n = completed.sum();
+        return n == 0 ? 0.0 : totalRunNanos.sum() / 1000.0 / n;
+    }
+
+    // ==================== FILA (anel MPMC) ====================
+
+    private boolean offer(Runnable task) {
+        long pos = enqueuePos.get();
+        int idx;
+        while (true) {
+            idx = (int) (pos & mask);
+            long dif = sequence.get(idx) - pos;
+            if (dif == 0) {
+                // Posição livre: tentar reservá-la
+                if (enqueuePos.compareAndSet(pos, pos + 1)) break;
+                pos = enqueuePos.get();
+            } else if (dif < 0) {
+                return false; // Fila cheia
+            } else {
+                pos = enqueuePos.get(); // Outro produtor avançou
             }
-            queue.add(task);
+        }
+        tasks[idx] = task;
+        enqueueNanos[idx] = System.nanoTime();
+        sequence.set(idx, pos + 1); // Publica a tarefa (escrita volátil)
+        return true;
+    }
 
-            notEmpty.signal();
-        } finally {
-            lock.unlock();
+    //Retira a próxima tarefa e corre-a. Retorna false se a fila estava vazia.
+    private boolean pollAndRun() {
+        long pos = dequeuePos.get();
+        int idx;
+        while (true) {
+            idx = (int) (pos & mask);
+            long dif = sequence.get(idx) - (pos + 1);
+            if (dif == 0) {
+                if (dequeuePos.compareAndSet(pos, pos + 1)) break;
+                pos = dequeuePos.get();
+            } else if (dif < 0) {
+                return false; // Fila vazia
+            } else {
+                pos = dequeuePos.get();
+            }
         }
+        Runnable task = tasks[idx];
+        long enqueuedAt = enqueueNanos[idx];
+        tasks[idx] = null;
+        sequence.set(idx, pos + mask + 1); // Liberta a posição para a próxima volta do anel
+        runTask(task, enqueuedAt);
+        return true;
     }
 
-    public void stop() {
-        lock.lock();
+    private boolean isEmpty() {
+        return enqueuePos.get() == dequeuePos.get();
+    }
+
+    private void runTask(Runnable task, long enqueuedAt) {
+        long start = System.nanoTime();
+        long wait = start - enqueuedAt;
+        totalWaitNanos.add(wait);
+        if (wait > maxWaitNanos.get()) {
+            maxWaitNanos.accumulateAndGet(wait, Math::max);
+        }
         try {
-            isStopped = true;
-            // Aqui usamos signalAll para garantir que todos os workers acordam para ver que a pool parou e terminarem.
-            notEmpty.signalAll();
+            task.run();
+        } catch (RuntimeException e) {
+            Log.error("Erro na execução da tarefa: " + e.getMessage());
         } finally {
-            lock.unlock();
+            totalRunNanos.add(System.nanoTime() - start);
+            completed.increment();
+        }
+    }
+
+    //Acorda um worker estacionado, se houver algum
+    private void wakeIdleWorker() {
+        if (idleWorkers.get() == 0) {
+            return;
+        }
+        for (Worker worker : workers) {
+            if (worker.parked.compareAndSet(true, false)) {
+                idleWorkers.decrementAndGet();
+                LockSupport.unpark(worker);
+                return;
+            }
         }
     }
 
     private class Worker extends Thread {
+        final AtomicBoolean parked = new AtomicBoolean(false);
+
+        Worker(int id) {
+            super(name + "-Worker-" + id);
+        }
+
         @Override
         public void run() {
             while (true) {
-                Runnable task;
-                
-                lock.lock();
-                try {
-                    // Enquanto não houver tarefas e a pool não tiver parado, espera.
-                    while (queue.isEmpty() && !isStopped) {
-                        try {
-                            notEmpty.await();
-                        } catch (InterruptedException e) {
-                            Thread.currentThread().interrupt();
-                        }
-                    }
-                    // Se a pool parou e a fila está vazia, termina a thread
-                    if (isStopped && queue.isEmpty()) {
-                        return;
-                    }
-                    // Retira a tarefa da fila (FIFO)
-                    task = queue.remove(0);
-                    
-                } finally {
-                    lock.unlock();
+                if (pollAndRun()) {
+                    continue;
+                }
+                // Se a pool parou e a fila está vazia, termina a thread
+                if (isStopped) {
+                    return;
+                }
+                // Espera ativa curta antes de estacionar (tarefas chegam muitas vezes em rajada)
+                boolean found = false;
+                for (int i = 0; i < SPIN_TRIES && !found; i++) {
+                    Thread.onSpinWait();
+                    found = !isEmpty();
+                }
+                if (found) {
+                    continue;
                 }
 
-                // Executa a tarefa fora da secção crítica para permitir que outras threads acessem a fila (concorrência real).
-                try {
-                    task.run();
-                } catch (RuntimeException e) {
-                    System.err.println("Erro na execução da tarefa: " + e.getMessage());
+                // Anunciar que vai estacionar e voltar a verificar a fila (evita perder um aviso)
+                parked.set(true);
+                idleWorkers.incrementAndGet();
+                if (isEmpty() && !isStopped) {
+                    LockSupport.parkNanos(this, PARK_NANOS);
+                }
+                if (parked.compareAndSet(true, false)) {
+                    idleWorkers.decrementAndGet(); // Acordou sozinho (timeout ou havia trabalho)
                 }
             }
         }
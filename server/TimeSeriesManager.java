@@ -2,10 +2,20 @@ package server;
 
 import geral.Protocol;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import server.persistence.DayFile;
 import server.persistence.TimeSeriesPersistence;
 
 /*
@@ -14,11 +24,22 @@ Gere o dia corrente e os D dias anteriores.
  */
 
 public class TimeSeriesManager {
+    // Estimativa por evento: objeto Event (40), String do produto (24) e referência na lista (4);
+    // soma-se o array de bytes do nome do produto
+    private static final long EVENT_OVERHEAD_BYTES = 40 + 24 + 4;
+
     private final int maxDays; // D - número máximo de dias históricos (disco)
     private final int maxMemoryDays; // S - número máximo de dias em memória
+    private final long memoryBudgetBytes; // Orçamento de heap para os eventos do dia corrente (só avisa)
+    private final long offHeapBudgetBytes; // Orçamento de memória direta para os dias históricos em memória
+    private long historicalBytes; // Bytes off-heap dos dias em historicalDays
+    private long memoryEvictions; // Dias retirados da memória por excederem o orçamento off-heap
+    private boolean heapBudgetWarned; // Já se avisou que o dia corrente passou o orçamento de heap
     private final TimeSeriesPersistence persistence;
     
-    private final List<DayData> historicalDays; // Dias completos em memória
+    private final TreeMap<Integer, OffHeapDay> historicalDays; // Dias completos em memória (fora do heap), por id
+    private final Map<Integer, DayData> pendingSeals; // Dias fechados ainda a ser escritos em disco
+    private final ExecutorService sealer; // Escreve os dias fechados em segundo plano (um de cada vez, por ordem)
     private DayData currentDay; // Dia corrente
     private int currentDayId; // ID do dia corrente
     private final ReentrantReadWriteLock lock;
@@ -31,6 +52,7 @@ public class TimeSeriesManager {
         final List<Protocol.Event> events;
         final long startTime;
         boolean completed;
+        long estimatedBytes; // Tamanho estimado dos eventos no heap
         
         DayData(int dayId) {
             this.dayId = dayId;
@@ -47,41 +69,109 @@ public class TimeSeriesManager {
         this.maxDays = maxDays;
         this.maxMemoryDays = maxMemoryDays;
         this.persistence = persistence;
+        // Dois orçamentos separados: o dia corrente está no heap (memory.budgetMB, por omissão um quarto
+        // do heap máximo) e os dias selados em buffers diretos (memory.offHeapMB, por omissão um quarto
+        // de MaxDirectMemorySize). Retirar dias off-heap não alivia o heap, por isso não se misturam.
+        long budgetMB = Long.getLong("memory.budgetMB", 0);
+        this.memoryBudgetBytes = budgetMB > 0 ? budgetMB * 1024 * 1024 : Runtime.getRuntime().maxMemory() / 4;
+        long offHeapMB = Long.getLong("memory.offHeapMB", 0);
+        this.offHeapBudgetBytes = offHeapMB > 0 ? offHeapMB * 1024 * 1024 : maxDirectMemory() / 4;
         
-        this.historicalDays = new ArrayList<>();
+        this.historicalDays = new TreeMap<>();
+        this.pendingSeals = new ConcurrentHashMap<>();
+        this.sealer = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "Day-Sealer");
+            t.setDaemon(true);
+            return t;
+        });
         this.currentDayId = 0;
         this.currentDay = new DayData(currentDayId);
         this.lock = new ReentrantReadWriteLock();
         this.newEventCondition = lock.writeLock().newCondition();
     }
     
+    //Adquire o read lock, registando nas Metrics quanto tempo esperou.
+    //Só se mede o tempo quando o lock parece ocupado (leitura aproximada do estado, apenas para métricas);
+    //a aquisição em si é sempre a normal, para não passar à frente de escritores em espera.
+    private void lockRead() {
+        if (!lock.isWriteLocked() && !lock.hasQueuedThreads()) {
+            lock.readLock().lock();
+            Metrics.recordLock(false, 0);
+            return;
+        }
+        long start = System.nanoTime();
+        lock.readLock().lock();
+        Metrics.recordLock(false, System.nanoTime() - start);
+    }
+
+    //Adquire o write lock, registando nas Metrics quanto tempo esperou (ver lockRead)
+    private void lockWrite() {
+        if (!lock.isWriteLocked() && lock.getReadLockCount() == 0 && !lock.hasQueuedThreads()) {
+            lock.writeLock().lock();
+            Metrics.recordLock(true, 0);
+            return;
+        }
+        long start = System.nanoTime();
+        lock.writeLock().lock();
+        Metrics.recordLock(true, System.nanoTime() - start);
+    }
+
     public void setAggregationService(AggregationService as) {
         this.aggregationService = as;
     }
     
     //Adiciona um evento ao dia corrente.
+    //O evento é escrito no WAL dentro do lock (mesma ordem que na memória) e só se espera
+    //pela durabilidade depois de libertar o lock, para que vários eventos partilhem o mesmo fsync.
     public void addEvent(String product, int quantity, double price) {
-        lock.writeLock().lock();
+        long walSeq;
+        lockWrite();
         try {
             Protocol.Event event = new Protocol.Event(product, quantity, price);
             if (currentDay.completed) {
                 throw new IllegalStateException("Dia já está completo");
             }
-            currentDay.events.add(event);
+            walSeq = persistence.logEvent(currentDayId, event);
+            appendEvent(currentDay, event);
             newEventCondition.signalAll();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Erro ao escrever no WAL", e);
         } finally {
             lock.writeLock().unlock();
         }
+
+        try {
+            persistence.awaitDurable(walSeq);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Erro ao sincronizar WAL", e);
+        }
     }
 
     //persistencia
     public void addEvent(Protocol.Event event) {
-        lock.writeLock().lock();
+        lockWrite();
         try {
             if (currentDay.completed) {
                 throw new IllegalStateException("Dia já está completo");
             }
-            currentDay.events.add(event);
+            appendEvent(currentDay, event);
+            newEventCondition.signalAll();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    //Carrega de uma vez os eventos recuperados do dia corrente (arranque): um único write lock
+    //em vez de um por evento.
+    public void loadCurrentDayEvents(List<Protocol.Event> events) {
+        long bytes = 0;
+        for (Protocol.Event event : events) {
+            bytes += estimateBytes(event);
+        }
+        lockWrite();
+        try {
+            currentDay.events.addAll(events);
+            currentDay.estimatedBytes += bytes;
             newEventCondition.signalAll();
         } finally {
             lock.writeLock().unlock();
@@ -89,34 +179,19 @@ public class TimeSeriesManager {
     }
     
     //Inicia um novo dia, movendo o dia corrente para histórico.
-    public void newDay() {
-        lock.writeLock().lock();
+    //Dentro do lock apenas se troca o dia corrente (O(1)); a cópia do dia fechado para fora do heap
+    //e a escrita em disco são feitas em segundo plano e, até lá, o dia é servido a partir de pendingSeals.
+    //Retorna um future que completa quando o dia fechado está durável em disco.
+    public CompletableFuture<Void> newDay() {
+        DayData sealedDay;
+        int newDayId;
+        lockWrite();
         try {
-            // Completar o dia atual
-            currentDay.completed = true;
+            // Completar o dia atual (acorda quem espera por vendas neste dia)
+            sealedDay = currentDay;
+            sealedDay.completed = true;
             newEventCondition.signalAll();
-            
-            // Persistir dia atual
-            try {
-                persistence.saveDay(currentDayId, currentDay.events);
-                persistence.saveState(this); 
-            } catch (IOException e) {
-                System.err.println("Erro ao persistir dia " + currentDayId + ": " + e.getMessage());
-            }
-            
-            // Adicionar ao histórico
-            historicalDays.add(0, currentDay);
-            
-            // Remover dias antigos da memória se exceder o limite S
-            while (historicalDays.size() > maxMemoryDays) {
-                historicalDays.remove(historicalDays.size() - 1);
-            }
-            
-            // Remover dias antigos do disco se exceder o limite D
-            int dayToDelete = currentDayId - maxDays;
-            if (dayToDelete >= 0) {
-                persistence.deleteDay(dayToDelete);
-            }
+            pendingSeals.put(sealedDay.dayId, sealedDay);
             
              // Invalida cache de agregação (se existir)
              if (aggregationService != null) {
@@ -125,16 +200,167 @@ public class TimeSeriesManager {
             
             // Criar novo dia
             currentDayId++;
+            newDayId = currentDayId;
             currentDay = new DayData(currentDayId);
+            heapBudgetWarned = false;
+
+            // Os novos eventos passam a ir para o WAL do novo dia; a metadata passa a apontar para ele
+            // antes de largar o lock (antes de qualquer evento do novo dia ser confirmado). Se o servidor
+            // cair a seguir, o arranque retoma o novo dia e sela o anterior a partir do seu WAL.
+            try {
+                persistence.startDayLog(newDayId);
+                persistence.saveMetadata(maxDays, newDayId);
+            } catch (IOException e) {
+                System.err.println("Erro ao iniciar o dia " + newDayId + " em disco: " + e.getMessage());
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        return CompletableFuture.runAsync(() -> sealDay(sealedDay), sealer);
+    }
+
+    //Copia um dia fechado para fora do heap e escreve-o em disco (thread Day-Sealer).
+    //A metadata do novo dia já foi escrita em newDay: se o servidor cair antes de day_N.dat existir,
+    //o WAL do dia N ainda está em disco e o arranque volta a selá-lo.
+    private void sealDay(DayData day) {
+        OffHeapDay offHeap = OffHeapDay.fromEvents(day.dayId, day.events);
+        lockWrite();
+        try {
+            // Adicionar ao histórico (os eventos no heap ficam em pendingSeals até estarem em disco)
+            historicalDays.put(day.dayId, offHeap);
+            historicalBytes += offHeap.getSizeBytes();
             
+            // Remover dias antigos da memória se exceder o limite S, a janela D ou o orçamento
+            // (com S=0 o mapa fica vazio: firstKey() não pode ser chamado)
+            while (!historicalDays.isEmpty()
+                    && (historicalDays.size() > maxMemoryDays || historicalDays.firstKey() < currentDayId - maxDays)) {
+                evictOldestDay();
+            }
+            enforceOffHeapBudget();
         } finally {
             lock.writeLock().unlock();
         }
+
+        try {
+            persistence.saveDay(day.dayId, day.events);
+            persistence.deleteDayLog(day.dayId);
+        } catch (IOException e) {
+            System.err.println("Erro ao persistir dia " + day.dayId + ": " + e.getMessage());
+            throw new UncheckedIOException(e);
+        } finally {
+            pendingSeals.remove(day.dayId);
+        }
+
+        // Remover dias antigos do disco se exceder o limite D
+        int dayToDelete = day.dayId - maxDays;
+        if (dayToDelete >= 0) {
+            persistence.deleteDay(dayToDelete);
+        }
     }
     
+    // Acrescenta um evento a um dia e atualiza o tamanho estimado (com o write lock).
+    // O dia corrente tem de ficar todo no heap: passar o orçamento de heap só gera um aviso (uma vez por dia).
+    private void appendEvent(DayData day, Protocol.Event event) {
+        day.events.add(event);
+        day.estimatedBytes += estimateBytes(event);
+        if (day.estimatedBytes > memoryBudgetBytes && !heapBudgetWarned) {
+            heapBudgetWarned = true;
+            Log.warn("Dia " + day.dayId + " passou o orçamento de heap para eventos ("
+                + memoryBudgetBytes / 1024 + " KiB)");
+        }
+    }
+
+    // Retira dias históricos (do mais antigo para o mais recente) até caberem no orçamento off-heap.
+    // Um dia retirado continua disponível: em disco, através da cache de dias mapeados,
+    // ou em pendingSeals enquanto não estiver selado.
+    private void enforceOffHeapBudget() {
+        while (!historicalDays.isEmpty() && historicalBytes > offHeapBudgetBytes) {
+            evictOldestDay();
+            memoryEvictions++;
+        }
+    }
+
+    // Limite de memória direta da JVM (-XX:MaxDirectMemorySize; sem ele, o heap máximo)
+    private static long maxDirectMemory() {
+        try {
+            com.sun.management.HotSpotDiagnosticMXBean diagnostics = java.lang.management.ManagementFactory
+                .getPlatformMXBean(com.sun.management.HotSpotDiagnosticMXBean.class);
+            long configured = Long.parseLong(diagnostics.getVMOption("MaxDirectMemorySize").getValue());
+            if (configured > 0) {
+                return configured;
+            }
+        } catch (RuntimeException e) {
+            // JVM sem a opção (ou sem o MXBean): usa-se o valor por omissão do HotSpot
+        }
+        return Runtime.getRuntime().maxMemory();
+    }
+
+    // Chamado com o write lock: nenhum leitor está a usar o dia, por isso a memória off-heap pode ser libertada já
+    private void evictOldestDay() {
+        OffHeapDay removed = historicalDays.pollFirstEntry().getValue();
+        historicalBytes -= removed.getSizeBytes();
+        removed.release();
+    }
+
+    private static long estimateBytes(Protocol.Event event) {
+        long nameBytes = (16 + event.getProduct().length() + 7) & ~7L; // Array alinhado a 8 bytes
+        return EVENT_OVERHEAD_BYTES + nameBytes;
+    }
+
+    //Orçamento de heap para os eventos do dia corrente, em bytes.
+    public long getMemoryBudgetBytes() {
+        return memoryBudgetBytes;
+    }
+
+    //Orçamento de memória direta para os dias históricos em memória, em bytes.
+    public long getOffHeapBudgetBytes() {
+        return offHeapBudgetBytes;
+    }
+
+    //Tamanho estimado dos eventos do dia corrente.
+    public long getCurrentDayBytes() {
+        lockRead();
+        try {
+            return currentDay.estimatedBytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    //Bytes off-heap dos dias históricos em memória.
+    public long getHistoricalBytes() {
+        lockRead();
+        try {
+            return historicalBytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    //Número de dias históricos em memória.
+    public int getInMemoryDayCount() {
+        lockRead();
+        try {
+            return historicalDays.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    //Número de dias retirados da memória por excederem o orçamento off-heap.
+    public long getMemoryEvictionCount() {
+        lockRead();
+        try {
+            return memoryEvictions;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
     //Obtém eventos do dia corrente.
     public List<Protocol.Event> getCurrentDayEvents() {
-        lock.readLock().lock();
+        lockRead();
         try {
             return new ArrayList<>(currentDay.events);
         } finally {
@@ -144,7 +370,7 @@ public class TimeSeriesManager {
     
     //Obtém o número de eventos no dia corrente.
     public int getCurrentDayEventCount() {
-        lock.readLock().lock();
+        lockRead();
         try {
             return currentDay.events.size();
         } finally {
@@ -155,7 +381,7 @@ public class TimeSeriesManager {
     
     //Obtém o ID do dia corrente.
     public int getCurrentDayId() {
-        lock.readLock().lock();
+        lockRead();
         try {
             return currentDayId;
         } finally {
@@ -164,7 +390,7 @@ public class TimeSeriesManager {
     }
 
     public void setCurrentDayId(int id) {
-        lock.writeLock().lock();
+        lockWrite();
         try {
             this.currentDayId = id;
             this.currentDay = new DayData(id);
@@ -180,7 +406,7 @@ public class TimeSeriesManager {
     
     //Obtém o número de dias históricos armazenados.
     public int getHistoricalDayCount() {
-        lock.readLock().lock();
+        lockRead();
         try {
             return Math.min(currentDayId, maxDays);
         } finally {
@@ -190,26 +416,63 @@ public class TimeSeriesManager {
 
     // Obtém os eventos de UM dia histórico específico.
     public List<Protocol.Event> getHistoricalDayEvents(int daysAgo) {
-        lock.readLock().lock();
+        lockRead();
         try {
-            int availableHistory = Math.min(currentDayId, maxDays);
-            
-            if (daysAgo < 0 || daysAgo >= availableHistory) {
+            if (!isAvailable(daysAgo)) {
                 return new ArrayList<>(); 
             }
 
-            if (daysAgo < historicalDays.size()) {
-                // Em memória
-                return new ArrayList<>(historicalDays.get(daysAgo).events);
-            } else {
-                 // Em disco
-                 int targetId = currentDayId - 1 - daysAgo;
-                 try {
-                     return persistence.loadDay(targetId);
-                 } catch (IOException e) {
-                     System.err.println("Erro ao carregar dia " + targetId + ": " + e.getMessage());
-                     return new ArrayList<>();
-                 }
+            OffHeapDay offHeap = historicalDays.get(currentDayId - 1 - daysAgo);
+            if (offHeap != null) {
+                return offHeap.toEvents();
+            }
+            DayData day = pendingSeals.get(currentDayId - 1 - daysAgo);
+            if (day != null) {
+                return new ArrayList<>(day.events);
+            }
+
+            // Em disco
+            int targetId = currentDayId - 1 - daysAgo;
+            try {
+                return persistence.loadDay(targetId);
+            } catch (IOException e) {
+                System.err.println("Erro ao carregar dia " + targetId + ": " + e.getMessage());
+                return new ArrayList<>();
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Obtém o resumo de vendas de um produto num dia histórico.
+    // Dias em disco no formato colunar respondem a partir do footer, sem ler eventos.
+    public ProductSummary getProductSummary(int daysAgo, String product) {
+        lockRead();
+        try {
+            if (!isAvailable(daysAgo)) {
+                return ProductSummary.EMPTY;
+            }
+
+            OffHeapDay offHeap = historicalDays.get(currentDayId - 1 - daysAgo);
+            if (offHeap != null) {
+                return offHeap.summary(product);
+            }
+            DayData day = pendingSeals.get(currentDayId - 1 - daysAgo);
+            if (day != null) {
+                return summarize(day.events, product);
+            }
+
+            int targetId = currentDayId - 1 - daysAgo;
+            prefetchNext(daysAgo);
+            try {
+                DayFile file = persistence.openDay(targetId);
+                if (file != null) {
+                    return file.summary(product);
+                }
+                return summarize(persistence.loadDay(targetId), product); // Formato antigo
+            } catch (IOException e) {
+                System.err.println("Erro ao carregar dia " + targetId + ": " + e.getMessage());
+                return ProductSummary.EMPTY;
             }
         } finally {
             lock.readLock().unlock();
@@ -218,16 +481,34 @@ public class TimeSeriesManager {
     
     //Obtém eventos filtrados por produtos e de dia.
     public List<Protocol.Event> getFilteredEvents(List<String> products, Integer dayOffset) {
-        lock.readLock().lock();
+        lockRead();
         try {
             List<Protocol.Event> sourceEvents = null;
             
             // dayOffset null = dia corrente
             if (dayOffset == null || dayOffset == 0) {
                 sourceEvents = currentDay.events;
-            } else {
-                // Dia histórico (Reutilizando a lógica do getHistoricalDayEvents mas otimizada se quisermos)
-                sourceEvents = getHistoricalDayEvents(dayOffset - 1);
+            } else if (isAvailable(dayOffset - 1)) {
+                OffHeapDay offHeap = historicalDays.get(currentDayId - dayOffset);
+                DayData day = pendingSeals.get(currentDayId - dayOffset);
+                if (offHeap != null) {
+                    return offHeap.filter(products);
+                } else if (day != null) {
+                    sourceEvents = day.events;
+                } else {
+                    // Dia em disco: o ficheiro mapeado só visita os blocos com os produtos pedidos
+                    int targetId = currentDayId - dayOffset;
+                    prefetchNext(dayOffset - 1);
+                    try {
+                        DayFile file = persistence.openDay(targetId);
+                        if (file != null) {
+                            return file.filter(products);
+                        }
+                        sourceEvents = persistence.loadDay(targetId); // Formato antigo
+                    } catch (IOException e) {
+                        System.err.println("Erro ao carregar dia " + targetId + ": " + e.getMessage());
+                    }
+                }
             }
 
             List<Protocol.Event> result = new ArrayList<>();
@@ -244,15 +525,161 @@ public class TimeSeriesManager {
             lock.readLock().unlock();
         }
     }
+
+    //Abre uma leitura por partes de um filtro (respostas em stream).
+    //A leitura fica presa ao dia pedido e aos eventos que este tinha ao abrir: eventos acrescentados
+    //depois não entram, e o dia continua a ser encontrado se entretanto fechar ou sair da memória.
+    public FilterScan openFilterScan(List<String> products, int dayOffset) throws IOException {
+        lockRead();
+        try {
+            int dayId = currentDayId - dayOffset;
+            int eventCount = 0;
+            if (dayOffset == 0) {
+                eventCount = currentDay.events.size();
+            } else if (isAvailable(dayOffset - 1)) {
+                OffHeapDay offHeap = historicalDays.get(dayId);
+                DayData day = pendingSeals.get(dayId);
+                if (offHeap != null) {
+                    eventCount = offHeap.getEventCount();
+                } else if (day != null) {
+                    eventCount = day.events.size();
+                } else {
+                    DayFile file = persistence.openDay(dayId);
+                    eventCount = file != null ? file.getEventCount() : persistence.loadDay(dayId).size();
+                }
+            }
+            return new FilterScan(products, dayId, eventCount);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    //Leitura por partes de getFilteredEvents: cada next() lê uma parte com o lock de leitura e larga-o
+    //a seguir, por isso enviar um dia inteiro a um cliente lento não atrasa a mudança de dia.
+    //Não é thread-safe (é usada por uma tarefa de cada vez).
+    public final class FilterScan {
+        private final Set<String> products; // null = todos
+        private final int dayId;
+        private final int endRow;
+        private int nextRow;
+
+        private FilterScan(List<String> products, int dayId, int endRow) {
+            this.products = products == null || products.isEmpty() ? null : new HashSet<>(products);
+            this.dayId = dayId;
+            this.endRow = endRow;
+        }
+
+        public boolean hasMore() {
+            return nextRow < endRow;
+        }
+
+        //Próxima parte: pelo menos maxEvents eventos se existirem (nos dias em disco pode passar até ao
+        //fim do bloco); vazia no fim ou se o dia já saiu da janela de D dias.
+        public List<Protocol.Event> next(int maxEvents) throws IOException {
+            List<Protocol.Event> result = new ArrayList<>();
+            lockRead();
+            try {
+                List<Protocol.Event> source = null;
+                if (!hasMore()) {
+                    return result;
+                } else if (dayId == currentDayId) {
+                    source = currentDay.events;
+                } else if (pendingSeals.containsKey(dayId)) {
+                    source = pendingSeals.get(dayId).events;
+                } else if (historicalDays.containsKey(dayId)) {
+                    nextRow = historicalDays.get(dayId).filter(products, nextRow, maxEvents, result);
+                } else if (isAvailable(currentDayId - 1 - dayId)) {
+                    DayFile file = persistence.openDay(dayId);
+                    if (file != null) {
+                        nextRow = file.filter(products, nextRow, maxEvents, result);
+                    } else {
+                        source = persistence.loadDay(dayId); // Formato antigo: lido inteiro a cada parte
+                    }
+                } else {
+                    nextRow = endRow;
+                }
+
+                if (source != null) {
+                    int row = nextRow;
+                    int end = Math.min(endRow, source.size());
+                    for (; row < end && result.size() < maxEvents; row++) {
+                        Protocol.Event event = source.get(row);
+                        if (products == null || products.contains(event.getProduct())) {
+                            result.add(event);
+                        }
+                    }
+                    nextRow = row < end ? row : endRow;
+                }
+                nextRow = Math.min(nextRow, endRow);
+                return result;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+    }
+
+    // Verifica se um dia histórico (0 = ontem) está dentro da janela de D dias
+    private boolean isAvailable(int daysAgo) {
+        int availableHistory = Math.min(currentDayId, maxDays);
+        return daysAgo >= 0 && daysAgo < availableHistory;
+    }
+
+    // Numa leitura de dias seguidos, o dia anterior (daysAgo + 1) é o próximo a ser pedido:
+    // se estiver só em disco, começa já a ser carregado em segundo plano
+    private void prefetchNext(int daysAgo) {
+        if (isAvailable(daysAgo + 1) && !isInMemory(daysAgo + 1)) {
+            persistence.prefetchDay(currentDayId - 2 - daysAgo);
+        }
+    }
+
+    //Carrega para a cache, em paralelo, os S dias mais recentes que só estão em disco (arranque).
+    //Retorna um future que completa quando todos estiverem carregados.
+    public CompletableFuture<Void> warmRecentDays() {
+        List<Integer> dayIds = new ArrayList<>();
+        lockRead();
+        try {
+            for (int daysAgo = 0; daysAgo < maxMemoryDays && isAvailable(daysAgo); daysAgo++) {
+                if (!isInMemory(daysAgo)) {
+                    dayIds.add(currentDayId - 1 - daysAgo);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return persistence.warmDays(dayIds);
+    }
+
+    // Dia histórico em memória (off-heap nos dias recentes, ou ainda a ser escrito), false se só estiver em disco
+    private boolean isInMemory(int daysAgo) {
+        int dayId = currentDayId - 1 - daysAgo;
+        return historicalDays.containsKey(dayId) || pendingSeals.containsKey(dayId);
+    }
+
+    private static ProductSummary summarize(List<Protocol.Event> events, String product) {
+        int count = 0;
+        long quantity = 0;
+        double volume = 0.0;
+        double maxPrice = Double.NEGATIVE_INFINITY;
+        for (Protocol.Event event : events) {
+            if (event.getProduct().equals(product)) {
+                count++;
+                quantity += event.getQuantity();
+                volume += event.getQuantity() * event.getPrice();
+                maxPrice = Math.max(maxPrice, event.getPrice());
+            }
+        }
+        return count == 0 ? ProductSummary.EMPTY : new ProductSummary(count, quantity, volume, maxPrice);
+    }
     
     //Aguarda até que ambos os produtos sejam vendidos simultaneamente no dia corrente.
     //Retorna true se a condição foi satisfeita, false se o dia terminou antes.
     public boolean waitForSimultaneousSales(String product1, String product2) {
-        lock.writeLock().lock();
+        lockWrite();
         try {
+            DayData day = currentDay; // O dia em que se começou a esperar
             while (true) {
                 // Verificar se o dia acabou
-                if (currentDay.completed) {
+                if (day.completed) {
                     return false;
                 }
                 
@@ -260,7 +687,7 @@ public class TimeSeriesManager {
                 boolean hasProduct1 = false;
                 boolean hasProduct2 = false;
                 
-                for (Protocol.Event event : currentDay.events) {
+                for (Protocol.Event event : day.events) {
                     if (event.getProduct().equals(product1)) {
                         hasProduct1 = true;
                     }
@@ -287,22 +714,23 @@ public class TimeSeriesManager {
     //Aguarda até que N vendas consecutivas ocorram no dia corrente.
     //Retorna o produto com N vendas consecutivas, ou null se o dia terminou.
     public String waitForConsecutiveSales(Integer n) {
-        lock.writeLock().lock();
+        lockWrite();
         try {
+            DayData day = currentDay; // O dia em que se começou a esperar
             while (true) {
                 // Verificar se o dia acabou
-                if (currentDay.completed) {
+                if (day.completed) {
                     return null;
                 }
                 
                 // Verificar vendas consecutivas
-                if (currentDay.events.size() >= n) {
+                if (day.events.size() >= n) {
                     // Verificar os últimos N eventos
                     String product = null;
                     boolean allSame = true;
                     
-                    for (int i = currentDay.events.size() - n; i < currentDay.events.size(); i++) {
-                        String eventProduct = currentDay.events.get(i).getProduct();
+                    for (int i = day.events.size() - n; i < day.events.size(); i++) {
+                        String eventProduct = day.events.get(i).getProduct();
                         if (product == null) {
                             product = eventProduct;
                         } else if (!product.equals(eventProduct)) {
@@ -1,27 +1,50 @@
 package server;
 
-//Representa um utilizador do sistema
+import java.security.MessageDigest;
+
+//Representa um utilizador do sistema.
+//A password não é guardada: só o salt e o resultado do PBKDF2 (ver PasswordHasher).
 public class User {
     private final String username;
-    private final String password;
+    private final byte[] salt;
+    private final byte[] passwordHash;
+    private final int iterations;
     
-    //Cria um novo utilizador
-    public User(String username, String password) {
+    //Cria um utilizador a partir de credenciais já derivadas (persistência)
+    public User(String username, byte[] salt, byte[] passwordHash, int iterations) {
         this.username = username;
-        this.password = password;
+        this.salt = salt;
+        this.passwordHash = passwordHash;
+        this.iterations = iterations;
+    }
+    
+    //Cria um novo utilizador com um salt novo (operação cara: corre o PBKDF2)
+    public static User withPassword(String username, String password) {
+        byte[] salt = PasswordHasher.newSalt();
+        int iterations = PasswordHasher.DEFAULT_ITERATIONS;
+        return new User(username, salt, PasswordHasher.hash(password, salt, iterations), iterations);
     }
     
     public String getUsername() {
         return username;
     }
     
-    public String getPassword() {
-        return password;
+    public byte[] getSalt() {
+        return salt;
+    }
+    
+    public byte[] getPasswordHash() {
+        return passwordHash;
+    }
+    
+    public int getIterations() {
+        return iterations;
     }
     
-    //Verifica se a password fornecida está correta
+    //Verifica se a password fornecida está correta (operação cara: corre o PBKDF2).
+    //A comparação não termina no primeiro byte diferente, para o tempo de resposta não revelar o prefixo certo.
     public boolean checkPassword(String password) {
-        return this.password.equals(password);
+        return MessageDigest.isEqual(passwordHash, PasswordHasher.hash(password, salt, iterations));
     }
     
     @Override
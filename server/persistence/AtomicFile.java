@@ -0,0 +1,106 @@
+package server.persistence;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Escrita segura de ficheiros de persistência: o conteúdo vai para um ficheiro temporário,
+ * é sincronizado com o disco (fsync) e só depois substitui o original com um rename atómico.
+ * Um crash a meio deixa sempre o ficheiro antigo ou o novo, nunca um misto.
+ * <p>
+ * Ao conteúdo é acrescentada uma cauda [CRC32C int][magic "CRC1"], verificada na leitura.
+ * Ficheiros sem cauda (escritos por versões anteriores) continuam a ser lidos, sem verificação.
+ */
+public final class AtomicFile {
+    private static final int TRAILER_MAGIC = 0x43524331; // "CRC1"
+    private static final int TRAILER_SIZE = 8;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Conteúdo a escrever no ficheiro.
+     */
+    @FunctionalInterface
+    public interface Body {
+        void writeTo(DataOutputStream out) throws IOException;
+    }
+
+    private AtomicFile() {
+    }
+
+    /**
+     * Substitui atomicamente o ficheiro pelo conteúdo escrito por body, com checksum.
+     */
+    public static void write(File target, Body body) throws IOException {
+        File tmp = new File(target.getPath() + ".tmp");
+        CRC32C crc = new CRC32C();
+        try (FileOutputStream fileOut = new FileOutputStream(tmp)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new CheckedOutputStream(fileOut, crc), BUFFER_SIZE));
+            body.writeTo(out);
+            out.flush();
+            // A cauda não entra no checksum
+            DataOutputStream trailer = new DataOutputStream(new BufferedOutputStream(fileOut, TRAILER_SIZE));
+            trailer.writeInt((int) crc.getValue());
+            trailer.writeInt(TRAILER_MAGIC);
+            trailer.flush();
+            fileOut.getChannel().force(true);
+        }
+        replace(tmp, target);
+    }
+
+    /**
+     * Substitui o ficheiro de destino por um ficheiro temporário já escrito: fsync do temporário,
+     * rename atómico e fsync do diretório (para o rename sobreviver a uma falha de energia).
+     */
+    public static void replace(File tmp, File target) throws IOException {
+        try (FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        try {
+            Files.move(tmp.toPath(), target.toPath(),
+                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        syncDirectory(target.getAbsoluteFile().getParentFile());
+    }
+
+    /**
+     * Lê um ficheiro escrito com {@link #write} e verifica o checksum.
+     * @return o conteúdo (sem a cauda)
+     * @throws IOException se o checksum não corresponder (ficheiro corrompido)
+     */
+    public static DataInputStream read(File file) throws IOException {
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        int length = bytes.length;
+        if (length >= TRAILER_SIZE && ByteBuffer.wrap(bytes, length - 4, 4).getInt() == TRAILER_MAGIC) {
+            length -= TRAILER_SIZE;
+            int expected = ByteBuffer.wrap(bytes, length, 4).getInt();
+            CRC32C crc = new CRC32C();
+            crc.update(bytes, 0, length);
+            if ((int) crc.getValue() != expected) {
+                throw new IOException("Checksum inválido em " + file.getName() + " (ficheiro corrompido)");
+            }
+        }
+        return new DataInputStream(new ByteArrayInputStream(bytes, 0, length));
+    }
+
+    // Nem todos os sistemas permitem abrir um diretório para fsync; nesse caso fica a cargo do SO
+    private static void syncDirectory(File dir) {
+        if (dir == null) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Ignorado (por exemplo, em Windows)
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package server.persistence;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compressão opcional dos blocos dos ficheiros de dias selados.
+ * <ul>
+ *   <li>NONE - bloco guardado tal como está;</li>
+ *   <li>DEFLATE - java.util.zip (melhor taxa, mais lento);</li>
+ *   <li>LZ4 - implementação em Java do formato de bloco LZ4 (rápido a descomprimir).</li>
+ * </ul>
+ * O identificador de cada codec fica gravado no índice de blocos, por isso ficheiros escritos
+ * com codecs diferentes podem coexistir.
+ */
+public enum BlockCodec {
+    NONE(0), DEFLATE(1), LZ4(2);
+
+    private static final int HASH_BITS = 12;
+    private static final int MIN_MATCH = 4;
+    private static final int LAST_LITERALS = 5;
+    private static final int MATCH_FIND_LIMIT = 12;
+    private static final int MAX_OFFSET = 65535;
+
+    private final int id;
+
+    BlockCodec(int id) {
+        this.id = id;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public static BlockCodec fromId(int id) throws IOException {
+        for (BlockCodec codec : values()) {
+            if (codec.id == id) {
+                return codec;
+            }
+        }
+        throw new IOException("Codec de bloco desconhecido: " + id);
+    }
+
+    /**
+     * Codec configurado na propriedade do sistema day.codec (none|deflate|lz4, por omissão none).
+     */
+    public static BlockCodec fromSystemProperties() {
+        switch (System.getProperty("day.codec", "none").trim().toLowerCase()) {
+            case "deflate":
+                return DEFLATE;
+            case "lz4":
+                return LZ4;
+            default:
+                return NONE;
+        }
+    }
+
+    /**
+     * Comprime os primeiros len bytes de src. O resultado pode ser maior que o original;
+     * quem escreve decide se compensa guardar a versão comprimida.
+     */
+    public byte[] compress(byte[] src, int len) {
+        switch (this) {
+            case DEFLATE:
+                return deflate(src, len);
+            case LZ4:
+                return lz4Compress(src, len);
+            default:
+                return Arrays.copyOf(src, len);
+        }
+    }
+
+    /**
+     * Descomprime um bloco com rawLength bytes originais.
+     */
+    public byte[] decompress(byte[] src, int rawLength) throws IOException {
+        switch (this) {
+            case DEFLATE:
+                return inflate(src, rawLength);
+            case LZ4:
+                return lz4Decompress(src, rawLength);
+            default:
+                return src;
+        }
+    }
+
+    // ==================== DEFLATE ====================
+
+    private static byte[] deflate(byte[] src, int len) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(src, 0, len);
+            deflater.finish();
+            byte[] out = new byte[len + len / 100 + 64];
+            int size = 0;
+            while (!deflater.finished()) {
+                if (size == out.length) {
+                    out = Arrays.copyOf(out, out.length * 2);
+                }
+                size += deflater.deflate(out, size, out.length - size);
+            }
+            return Arrays.copyOf(out, size);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] src, int rawLength) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(src);
+            byte[] out = new byte[rawLength];
+            int size = 0;
+            while (size < rawLength && !inflater.finished()) {
+                int n = inflater.inflate(out, size, rawLength - size);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                size += n;
+            }
+            if (size != rawLength) {
+                throw new IOException("Bloco comprimido truncado");
+            }
+            return out;
+        } catch (DataFormatException e) {
+            throw new IOException("Bloco comprimido inválido: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+
+    // ==================== LZ4 (formato de bloco) ====================
+    // Sequência: [token: literais(4 bits) | match-4(4 bits)][literais extra][literais]
+    //            [offset 2 bytes LE][match extra]. A última sequência só tem literais.
+
+    private static byte[] lz4Compress(byte[] src, int len) {
+        byte[] dst = new byte[len + len / 255 + 16];
+        int[] table = new int[1 << HASH_BITS];
+        Arrays.fill(table, -1);
+
+        int ip = 0;
+        int anchor = 0;
+        int op = 0;
+        int limit = len - MATCH_FIND_LIMIT;
+        while (ip < limit) {
+            int sequence = readInt(src, ip);
+            int hash = (sequence * -1640531535) >>> (32 - HASH_BITS);
+            int ref = table[hash];
+            table[hash] = ip;
+            if (ref < 0 || ip - ref > MAX_OFFSET || readInt(src, ref) != sequence) {
+                ip++;
+                continue;
+            }
+            int matchLength = MIN_MATCH;
+            int maxMatch = len - LAST_LITERALS - ip;
+            while (matchLength < maxMatch && src[ref + matchLength] == src[ip + matchLength]) {
+                matchLength++;
+            }
+            op = writeSequence(dst, op, src, anchor, ip - anchor, ip - ref, matchLength);
+            ip += matchLength;
+            anchor = ip;
+        }
+        op = writeSequence(dst, op, src, anchor, len - anchor, 0, 0);
+        return Arrays.copyOf(dst, op);
+    }
+
+    // matchLength == 0 indica a última sequência (só literais)
+    private static int writeSequence(byte[] dst, int op, byte[] src, int literalStart, int literals,
+                                     int offset, int matchLength) {
+        int matchCode = matchLength == 0 ? 0 : matchLength - MIN_MATCH;
+        int tokenPos = op++;
+        dst[tokenPos] = (byte) ((Math.min(literals, 15) << 4) | Math.min(matchCode, 15));
+        op = writeLength(dst, op, literals);
+        System.arraycopy(src, literalStart, dst, op, literals);
+        op += literals;
+        if (matchLength > 0) {
+            dst[op++] = (byte) offset;
+            dst[op++] = (byte) (offset >>> 8);
+            op = writeLength(dst, op, matchCode);
+        }
+        return op;
+    }
+
+    // Comprimentos >= 15 continuam em bytes de 255 até um byte menor
+    private static int writeLength(byte[] dst, int op, int length) {
+        if (length >= 15) {
+            int rest = length - 15;
+            while (rest >= 255) {
+                dst[op++] = (byte) 255;
+                rest -= 255;
+            }
+            dst[op++] = (byte) rest;
+        }
+        return op;
+    }
+
+    private static byte[] lz4Decompress(byte[] src, int rawLength) throws IOException {
+        byte[] dst = new byte[rawLength];
+        int ip = 0;
+        int op = 0;
+        try {
+            while (ip < src.length) {
+                int token = src[ip++] & 0xFF;
+                int literals = token >>> 4;
+                if (literals == 15) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xFF;
+                        literals += b;
+                    } while (b == 255);
+                }
+                System.arraycopy(src, ip, dst, op, literals);
+                ip += literals;
+                op += literals;
+                if (ip >= src.length) {
+                    break; // Última sequência
+                }
+
+                int offset = (src[ip] & 0xFF) | ((src[ip + 1] & 0xFF) << 8);
+                ip += 2;
+                int matchLength = token & 0x0F;
+                if (matchLength == 15) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xFF;
+                        matchLength += b;
+                    } while (b == 255);
+                }
+                matchLength += MIN_MATCH;
+                int ref = op - offset;
+                if (offset == 0 || ref < 0) {
+                    throw new IOException("Bloco LZ4 inválido");
+                }
+                // A cópia pode sobrepor-se (offset < comprimento): copiar byte a byte
+                for (int i = 0; i < matchLength; i++) {
+                    dst[op++] = dst[ref + i];
+                }
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Bloco LZ4 inválido");
+        }
+        if (op != rawLength) {
+            throw new IOException("Bloco LZ4 truncado");
+        }
+        return dst;
+    }
+
+    private static int readInt(byte[] b, int i) {
+        return (b[i] & 0xFF) | ((b[i + 1] & 0xFF) << 8) | ((b[i + 2] & 0xFF) << 16) | ((b[i + 3] & 0xFF) << 24);
+    }
+}
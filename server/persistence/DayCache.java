@@ -0,0 +1,250 @@
+package server.persistence;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Cache LRU dos dias em disco já mapeados, indexada pelo id do dia e limitada em bytes.
+ * <p>
+ * Evita voltar a abrir, mapear e ler o footer de um dia a cada consulta. Os dias podem ser
+ * carregados em segundo plano: em paralelo no arranque ({@link #warm}) e um de cada vez quando
+ * uma consulta percorre dias seguidos ({@link #prefetch}), para que o dia seguinte já esteja
+ * em memória quando for pedido.
+ */
+public class DayCache {
+
+    /**
+     * Carrega um dia do disco; devolve null se o dia não existir (ou não puder ser mapeado).
+     */
+    @FunctionalInterface
+    public interface Loader {
+        DayFile load(int dayId) throws IOException;
+    }
+
+    private final long maxBytes;
+    private final Loader loader;
+    private final ExecutorService background;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final LinkedHashMap<Integer, DayFile> entries = new LinkedHashMap<>(16, 0.75f, true); // Ordem de acesso
+    private final Set<Integer> loading = new HashSet<>(); // Dias a ser carregados em segundo plano
+    private final Map<Integer, Integer> generations = new HashMap<>(); // Invalidações de cada dia (ver put)
+    private long usedBytes = 0;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public DayCache(long maxBytes, int loaderThreads, Loader loader) {
+        this.maxBytes = maxBytes;
+        this.loader = loader;
+        AtomicInteger counter = new AtomicInteger();
+        this.background = Executors.newFixedThreadPool(Math.max(1, loaderThreads), r -> {
+            Thread t = new Thread(r, "Day-Loader-" + counter.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Cria a cache a partir das propriedades do sistema:
+     * day.cacheMB (orçamento em MiB, por omissão 256) e day.loaderThreads (por omissão 4).
+     */
+    public static DayCache fromSystemProperties(Loader loader) {
+        long megabytes = Long.getLong("day.cacheMB", 256);
+        int threads = Integer.getInteger("day.loaderThreads", 4);
+        return new DayCache(megabytes * 1024 * 1024, threads, loader);
+    }
+
+    /**
+     * Dia pedido, a partir da cache ou do disco.
+     * @return o dia mapeado, ou null se não existir
+     */
+    public DayFile get(int dayId) throws IOException {
+        int generation;
+        lock.lock();
+        try {
+            DayFile cached = entries.get(dayId);
+            if (cached != null) {
+                hits.increment();
+                return cached;
+            }
+            generation = generations.getOrDefault(dayId, 0);
+        } finally {
+            lock.unlock();
+        }
+
+        // Carregar fora do lock: outras consultas à cache não esperam pelo disco
+        misses.increment();
+        DayFile file = loader.load(dayId);
+        if (file != null) {
+            put(dayId, file, generation);
+        }
+        return file;
+    }
+
+    /**
+     * Carrega um dia em segundo plano (e traz as suas páginas para memória), se ainda não estiver na cache.
+     */
+    public void prefetch(int dayId) {
+        lock.lock();
+        try {
+            if (entries.containsKey(dayId) || !loading.add(dayId)) {
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        background.execute(() -> loadInBackground(dayId, generation(dayId)));
+    }
+
+    /**
+     * Carrega vários dias em paralelo.
+     * @return future que completa quando todos os dias tiverem sido carregados
+     */
+    public CompletableFuture<Void> warm(Collection<Integer> dayIds) {
+        List<CompletableFuture<Void>> loads = new ArrayList<>();
+        for (int dayId : dayIds) {
+            lock.lock();
+            try {
+                if (entries.containsKey(dayId) || !loading.add(dayId)) {
+                    continue;
+                }
+            } finally {
+                lock.unlock();
+            }
+            int generation = generation(dayId);
+            loads.add(CompletableFuture.runAsync(() -> loadInBackground(dayId, generation), background));
+        }
+        return CompletableFuture.allOf(loads.toArray(new CompletableFuture<?>[0]));
+    }
+
+    /**
+     * Remove um dia da cache (ficheiro apagado ou reescrito).
+     * Um carregamento do mesmo dia já em curso deixa de ser guardado na cache.
+     */
+    public void invalidate(int dayId) {
+        lock.lock();
+        try {
+            generations.merge(dayId, 1, Integer::sum);
+            DayFile removed = entries.remove(dayId);
+            if (removed != null) {
+                usedBytes -= removed.getSizeBytes();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getUsedBytes() {
+        lock.lock();
+        try {
+            return usedBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    // ==================== Internos ====================
+
+    // Geração atual do dia (lida antes de carregar, para put detetar uma invalidação entretanto)
+    private int generation(int dayId) {
+        lock.lock();
+        try {
+            return generations.getOrDefault(dayId, 0);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void loadInBackground(int dayId, int generation) {
+        try {
+            DayFile file = loader.load(dayId);
+            if (file != null) {
+                file.preload();
+                put(dayId, file, generation);
+            }
+        } catch (IOException e) {
+            System.err.println("Erro ao pré-carregar dia " + dayId + ": " + e.getMessage());
+        } finally {
+            lock.lock();
+            try {
+                loading.remove(dayId);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    // Insere um dia e liberta os menos usados recentemente até caber no orçamento.
+    // Um dia maior que o orçamento inteiro não fica na cache (é servido diretamente), nem um dia
+    // invalidado depois de o carregamento começar (o mapeamento é de um ficheiro reescrito ou apagado).
+    private void put(int dayId, DayFile file, int generation) {
+        long size = file.getSizeBytes();
+        if (size > maxBytes) {
+            return;
+        }
+        lock.lock();
+        try {
+            if (generations.getOrDefault(dayId, 0) != generation) {
+                return;
+            }
+            DayFile previous = entries.put(dayId, file);
+            if (previous != null) {
+                usedBytes -= previous.getSizeBytes();
+            }
+            usedBytes += size;
+            Iterator<Map.Entry<Integer, DayFile>> it = entries.entrySet().iterator();
+            while (usedBytes > maxBytes && it.hasNext()) {
+                Map.Entry<Integer, DayFile> eldest = it.next();
+                if (eldest.getKey() == dayId) {
+                    continue;
+                }
+                usedBytes -= eldest.getValue().getSizeBytes();
+                it.remove();
+                evictions.increment();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,512 @@
+package server.persistence;
+
+import geral.Protocol.Event;
+import geral.Serializer;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32C;
+import server.ProductSummary;
+
+/**
+ * Ficheiro de um dia fechado em formato colunar (versão 5), lido através de FileChannel.map.
+ *
+ * <pre>
+ * [magic "DAYC"][versão]
+ * bloco 0..B-1:  [modo preço byte][início quantidade int][início preço int][início timestamp int]
+ *                [produto varint x n][quantidade varint zigzag x n]
+ *                [preço: cêntimos varint zigzag x n (modo 1) ou double x n (modo 0)]
+ *                [timestamp delta-of-delta varint x n]
+ * footer:        [nº produtos][produtos (string)]
+ *                [nº blocos][por bloco: offset long, linhas int, codec byte,
+ *                            bytes guardados int, bytes originais int, CRC32C int]
+ *                [por produto: vendas int, quantidade long, volume double, preço máx double,
+ *                              nº palavras int, máscara de blocos long x palavras]
+ * cauda:         [offset do footer long][nº eventos int][CRC32C do footer int][magic]
+ * </pre>
+ *
+ * As agregações usam apenas os resumos do footer; os filtros só percorrem os blocos
+ * onde os produtos pedidos aparecem, lendo as colunas diretamente da memória mapeada.
+ * Os timestamps de cada bloco são codificados de forma independente, para que um bloco
+ * possa ser lido sem os anteriores. Ficheiros das versões 2 (colunas de largura fixa) e 3
+ * (sem compressão) continuam legíveis.
+ * <p>
+ * Cada bloco pode estar comprimido (ver {@link BlockCodec}); como o índice indica onde começa
+ * cada bloco e com que codec foi escrito, um filtro só descomprime os blocos que visita.
+ * Blocos que não ficam mais pequenos com compressão são guardados sem ela.
+ * <p>
+ * O footer é verificado ao abrir e cada bloco na primeira vez que é lido; um checksum errado
+ * resulta numa IOException em vez de dados errados. O ficheiro é escrito num temporário e
+ * colocado no lugar com um rename atómico (ver {@link AtomicFile#replace}).
+ */
+public class DayFile {
+    static final int MAGIC = 0x44415943; // "DAYC"
+    static final int VERSION = 5;
+    static final int BLOCK_ROWS = 4096;
+    private static final int HEADER_SIZE = 8;
+    private static final int TAIL_SIZE = 16;
+    private static final int CHECKED_TAIL_SIZE = 20;
+    private static final int BLOCK_HEADER_SIZE = 1 + 4 + 4 + 4;
+    private static final int FIXED_VERSION = 2;
+    private static final int UNCOMPRESSED_VERSION = 3;
+    private static final int COMPRESSED_VERSION = 4;
+    private static final byte PRICE_DOUBLE = 0;
+    private static final byte PRICE_CENTS = 1;
+
+    private final MappedByteBuffer data;
+    private final int version;
+    private final int eventCount;
+    private final String[] products;
+    private final Map<String, Integer> productIds;
+    private final long[] blockOffsets;
+    private final int[] blockRows;
+    private final BlockCodec[] blockCodecs;
+    private final int[] blockStoredLengths;
+    private final int[] blockRawLengths;
+    private final int[] blockChecksums;
+    private final boolean[] blockVerified; // Blocos cujo checksum já foi confirmado
+    private final ProductSummary[] summaries;
+    private final long[][] blockMasks;
+
+    private DayFile(MappedByteBuffer data) throws IOException {
+        this.data = data;
+        int size = data.capacity();
+        if (size < HEADER_SIZE + TAIL_SIZE || data.getInt(0) != MAGIC || data.getInt(size - 4) != MAGIC) {
+            throw new IOException("Ficheiro de dia inválido");
+        }
+        this.version = data.getInt(4);
+        if (version < FIXED_VERSION || version > VERSION) {
+            throw new IOException("Versão não suportada: " + version);
+        }
+
+        boolean checked = version == VERSION;
+        int tailSize = checked ? CHECKED_TAIL_SIZE : TAIL_SIZE;
+        long footerOffset = data.getLong(size - tailSize);
+        this.eventCount = data.getInt(size - tailSize + 8);
+        if (footerOffset < HEADER_SIZE || footerOffset > size - tailSize) {
+            throw new IOException("Ficheiro de dia corrompido (footer fora do ficheiro)");
+        }
+        if (checked && checksum(data, (int) footerOffset, size - tailSize - (int) footerOffset)
+                != data.getInt(size - 8)) {
+            throw new IOException("Ficheiro de dia corrompido (checksum do footer)");
+        }
+
+        ByteBuffer footer = data.duplicate();
+        footer.position((int) footerOffset);
+
+        int productCount = footer.getInt();
+        this.products = new String[productCount];
+        this.productIds = new HashMap<>(productCount * 2);
+        for (int i = 0; i < productCount; i++) {
+            byte[] bytes = new byte[footer.getInt()];
+            footer.get(bytes);
+            products[i] = new String(bytes, StandardCharsets.UTF_8);
+            productIds.put(products[i], i);
+        }
+
+        int blockCount = footer.getInt();
+        this.blockOffsets = new long[blockCount];
+        this.blockRows = new int[blockCount];
+        this.blockCodecs = new BlockCodec[blockCount];
+        this.blockStoredLengths = new int[blockCount];
+        this.blockRawLengths = new int[blockCount];
+        this.blockChecksums = new int[blockCount];
+        this.blockVerified = new boolean[blockCount];
+        for (int b = 0; b < blockCount; b++) {
+            blockOffsets[b] = footer.getLong();
+            blockRows[b] = footer.getInt();
+            if (version >= COMPRESSED_VERSION) {
+                blockCodecs[b] = BlockCodec.fromId(footer.get());
+                blockStoredLengths[b] = footer.getInt();
+                blockRawLengths[b] = footer.getInt();
+            } else {
+                blockCodecs[b] = BlockCodec.NONE;
+            }
+            if (checked) {
+                blockChecksums[b] = footer.getInt();
+            } else {
+                blockVerified[b] = true; // Versões antigas não têm checksums
+            }
+        }
+
+        this.summaries = new ProductSummary[productCount];
+        this.blockMasks = new long[productCount][];
+        for (int p = 0; p < productCount; p++) {
+            int count = footer.getInt();
+            long quantity = footer.getLong();
+            double volume = footer.getDouble();
+            double maxPrice = footer.getDouble();
+            summaries[p] = new ProductSummary(count, quantity, volume, maxPrice);
+            long[] mask = new long[footer.getInt()];
+            for (int w = 0; w < mask.length; w++) {
+                mask[w] = footer.getLong();
+            }
+            blockMasks[p] = mask;
+        }
+    }
+
+    /**
+     * Verifica (pelo magic) se o ficheiro está no formato colunar.
+     */
+    public static boolean isColumnar(File file) throws IOException {
+        if (file.length() < HEADER_SIZE + TAIL_SIZE) {
+            return false;
+        }
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            return in.readInt() == MAGIC;
+        }
+    }
+
+    /**
+     * Mapeia um ficheiro de dia em memória (só leitura).
+     */
+    public static DayFile open(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            // O mapeamento continua válido depois de fechar o canal
+            return new DayFile(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } catch (RuntimeException e) {
+            // Footer com tamanhos ou posições impossíveis
+            throw new IOException("Ficheiro de dia corrompido: " + e);
+        }
+    }
+
+    public int getEventCount() {
+        return eventCount;
+    }
+
+    /**
+     * Tamanho do ficheiro mapeado (usado no orçamento da {@link DayCache}).
+     */
+    public long getSizeBytes() {
+        return data.capacity();
+    }
+
+    /**
+     * Traz as páginas do ficheiro para memória física (pré-carregamento em segundo plano).
+     */
+    public void preload() {
+        data.load();
+    }
+
+    /**
+     * Resumo de vendas de um produto neste dia (a partir do footer, sem ler eventos).
+     */
+    public ProductSummary summary(String product) {
+        Integer id = productIds.get(product);
+        return id == null ? ProductSummary.EMPTY : summaries[id];
+    }
+
+    /**
+     * Eventos dos produtos pedidos (ou todos, se products for null ou vazio), pela ordem original.
+     * Só são visitados os blocos onde algum dos produtos aparece.
+     */
+    public List<Event> filter(Collection<String> products) throws IOException {
+        List<Event> result = new ArrayList<>();
+        filter(products, 0, Integer.MAX_VALUE, result);
+        return result;
+    }
+
+    /**
+     * Leitura por partes de {@link #filter(Collection)}: acrescenta a result os eventos a partir da linha
+     * fromRow, parando no fim do primeiro bloco em que já tenha pelo menos maxEvents eventos.
+     * @return a linha onde a leitura seguinte deve começar ({@link #getEventCount()} no fim)
+     */
+    public int filter(Collection<String> products, int fromRow, int maxEvents, List<Event> result)
+            throws IOException {
+        boolean all = products == null || products.isEmpty();
+        boolean[] wanted = new boolean[this.products.length];
+        long[] blocks = new long[(blockOffsets.length + 63) / 64];
+        if (all) {
+            Arrays.fill(wanted, true);
+            Arrays.fill(blocks, -1L);
+        } else {
+            for (String product : products) {
+                Integer id = productIds.get(product);
+                if (id != null) {
+                    wanted[id] = true;
+                    long[] mask = blockMasks[id];
+                    for (int w = 0; w < mask.length; w++) {
+                        blocks[w] |= mask[w];
+                    }
+                }
+            }
+        }
+
+        int added = 0;
+        int blockStart = 0;
+        for (int b = 0; b < blockOffsets.length; b++) {
+            int blockEnd = blockStart + blockRows[b];
+            if (blockEnd > fromRow && (blocks[b >>> 6] & (1L << (b & 63))) != 0) {
+                int skip = Math.max(0, fromRow - blockStart);
+                int before = result.size();
+                if (version == FIXED_VERSION) {
+                    readFixedBlock(b, skip, wanted, result);
+                } else {
+                    readBlock(b, skip, wanted, result);
+                }
+                added += result.size() - before;
+            }
+            blockStart = blockEnd;
+            if (added >= maxEvents) {
+                return Math.max(blockStart, fromRow);
+            }
+        }
+        return eventCount;
+    }
+
+    // Blocos das versões 3 e 4: as quatro colunas são percorridas em paralelo, cada uma com o seu cursor
+    // As primeiras skip linhas do bloco são descodificadas (colunas sequenciais) mas não entram no resultado
+    private void readBlock(int b, int skip, boolean[] wanted, List<Event> result) throws IOException {
+        int rows = blockRows[b];
+        ByteBuffer data = this.data;
+        int start = (int) blockOffsets[b];
+        if (!blockVerified[b]) {
+            if (checksum(data, start, blockStoredLengths[b]) != blockChecksums[b]) {
+                throw new IOException("Ficheiro de dia corrompido (checksum do bloco " + b + ")");
+            }
+            blockVerified[b] = true; // Corrida benigna: no pior caso o bloco é verificado duas vezes
+        }
+        if (blockCodecs[b] != BlockCodec.NONE) {
+            // Só este bloco é copiado da memória mapeada e descomprimido
+            byte[] stored = new byte[blockStoredLengths[b]];
+            data.get(start, stored);
+            data = ByteBuffer.wrap(blockCodecs[b].decompress(stored, blockRawLengths[b]));
+            start = 0;
+        }
+        boolean cents = data.get(start) == PRICE_CENTS;
+        ByteBuffer productCol = data.duplicate().position(start + BLOCK_HEADER_SIZE);
+        ByteBuffer quantityCol = data.duplicate().position(start + data.getInt(start + 1));
+        ByteBuffer priceCol = data.duplicate().position(start + data.getInt(start + 5));
+        ByteBuffer timestampCol = data.duplicate().position(start + data.getInt(start + 9));
+        Serializer.TimestampCodec timestamps = new Serializer.TimestampCodec();
+        for (int i = 0; i < rows; i++) {
+            int id = Serializer.readVarInt(productCol);
+            int quantity = Serializer.unzigzag(Serializer.readVarInt(quantityCol));
+            double price = cents
+                ? Serializer.unzigzag(Serializer.readVarLong(priceCol)) / 100.0
+                : priceCol.getDouble();
+            long timestamp = timestamps.read(timestampCol);
+            if (wanted[id] && i >= skip) {
+                result.add(new Event(this.products[id], quantity, price, timestamp));
+            }
+        }
+    }
+
+    // Bloco da versão 2 (colunas de largura fixa)
+    private void readFixedBlock(int b, int skip, boolean[] wanted, List<Event> result) {
+        int rows = blockRows[b];
+        int productCol = (int) blockOffsets[b];
+        int quantityCol = productCol + 4 * rows;
+        int priceCol = quantityCol + 4 * rows;
+        int timestampCol = priceCol + 8 * rows;
+        for (int i = skip; i < rows; i++) {
+            int id = data.getInt(productCol + 4 * i);
+            if (wanted[id]) {
+                result.add(new Event(this.products[id],
+                    data.getInt(quantityCol + 4 * i),
+                    data.getDouble(priceCol + 8 * i),
+                    data.getLong(timestampCol + 8 * i)));
+            }
+        }
+    }
+
+    /**
+     * Todos os eventos do dia.
+     */
+    public List<Event> toEvents() throws IOException {
+        return filter(null);
+    }
+
+    // ==================== ESCRITA ====================
+
+    /**
+     * Escreve os eventos de um dia no formato colunar, sem compressão.
+     */
+    public static void write(File file, List<Event> events) throws IOException {
+        write(file, events, BlockCodec.NONE);
+    }
+
+    /**
+     * Escreve os eventos de um dia no formato colunar, comprimindo cada bloco com o codec dado.
+     */
+    public static void write(File file, List<Event> events, BlockCodec codec) throws IOException {
+        int n = events.size();
+        int blockCount = (n + BLOCK_ROWS - 1) / BLOCK_ROWS;
+        int maskWords = (blockCount + 63) / 64;
+
+        // 1ª passagem: dicionário, ids por linha e resumos por produto
+        Map<String, Integer> ids = new HashMap<>();
+        List<String> dictionary = new ArrayList<>();
+        int[] rowIds = new int[n];
+        List<long[]> stats = new ArrayList<>();       // {vendas, quantidade}
+        List<double[]> values = new ArrayList<>();    // {volume, preço máx}
+        List<long[]> masks = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            Event event = events.get(i);
+            Integer id = ids.get(event.getProduct());
+            if (id == null) {
+                id = dictionary.size();
+                ids.put(event.getProduct(), id);
+                dictionary.add(event.getProduct());
+                stats.add(new long[2]);
+                values.add(new double[]{0.0, Double.NEGATIVE_INFINITY});
+                masks.add(new long[maskWords]);
+            }
+            rowIds[i] = id;
+            long[] st = stats.get(id);
+            st[0]++;
+            st[1] += event.getQuantity();
+            double[] v = values.get(id);
+            v[0] += event.getQuantity() * event.getPrice();
+            v[1] = Math.max(v[1], event.getPrice());
+            int block = i / BLOCK_ROWS;
+            masks.get(id)[block >>> 6] |= 1L << (block & 63);
+        }
+
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp), 64 * 1024))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+
+            // Blocos colunares (cada coluna é codificada à parte para se saber onde começa)
+            long offset = HEADER_SIZE;
+            long[] blockOffsets = new long[blockCount];
+            int[] blockRows = new int[blockCount];
+            byte[] blockCodecs = new byte[blockCount];
+            int[] blockStoredLengths = new int[blockCount];
+            int[] blockRawLengths = new int[blockCount];
+            int[] blockChecksums = new int[blockCount];
+            CRC32C crc = new CRC32C();
+            ByteArrayOutputStream block = new ByteArrayOutputStream(BLOCK_ROWS * 8);
+            DataOutputStream blockOut = new DataOutputStream(block);
+            ByteArrayOutputStream column = new ByteArrayOutputStream(BLOCK_ROWS * 8);
+            DataOutputStream col = new DataOutputStream(column);
+            for (int b = 0; b < blockCount; b++) {
+                int from = b * BLOCK_ROWS;
+                int to = Math.min(n, from + BLOCK_ROWS);
+                blockOffsets[b] = offset;
+                blockRows[b] = to - from;
+
+                boolean cents = true;
+                for (int i = from; i < to && cents; i++) {
+                    cents = isCents(events.get(i).getPrice());
+                }
+
+                column.reset();
+                for (int i = from; i < to; i++) {
+                    Serializer.writeVarInt(col, rowIds[i]);
+                }
+                int quantityStart = BLOCK_HEADER_SIZE + column.size();
+                for (int i = from; i < to; i++) {
+                    Serializer.writeVarInt(col, Serializer.zigzag(events.get(i).getQuantity()));
+                }
+                int priceStart = BLOCK_HEADER_SIZE + column.size();
+                for (int i = from; i < to; i++) {
+                    double price = events.get(i).getPrice();
+                    if (cents) {
+                        Serializer.writeVarLong(col, Serializer.zigzag(Math.round(price * 100)));
+                    } else {
+                        col.writeDouble(price);
+                    }
+                }
+                int timestampStart = BLOCK_HEADER_SIZE + column.size();
+                Serializer.TimestampCodec timestamps = new Serializer.TimestampCodec();
+                for (int i = from; i < to; i++) {
+                    timestamps.write(col, events.get(i).getTimestamp());
+                }
+                col.flush();
+
+                block.reset();
+                blockOut.writeByte(cents ? PRICE_CENTS : PRICE_DOUBLE);
+                blockOut.writeInt(quantityStart);
+                blockOut.writeInt(priceStart);
+                blockOut.writeInt(timestampStart);
+                column.writeTo(blockOut);
+                blockOut.flush();
+
+                byte[] raw = block.toByteArray();
+                byte[] stored = raw;
+                BlockCodec used = BlockCodec.NONE;
+                if (codec != BlockCodec.NONE) {
+                    byte[] compressed = codec.compress(raw, raw.length);
+                    if (compressed.length < raw.length) {
+                        stored = compressed;
+                        used = codec;
+                    }
+                }
+                out.write(stored);
+                blockCodecs[b] = (byte) used.getId();
+                blockStoredLengths[b] = stored.length;
+                blockRawLengths[b] = raw.length;
+                crc.reset();
+                crc.update(stored, 0, stored.length);
+                blockChecksums[b] = (int) crc.getValue();
+                offset += stored.length;
+            }
+
+            // Footer (escrito primeiro em memória para calcular o checksum)
+            long footerOffset = offset;
+            ByteArrayOutputStream footerBytes = new ByteArrayOutputStream();
+            DataOutputStream footer = new DataOutputStream(footerBytes);
+            footer.writeInt(dictionary.size());
+            for (String product : dictionary) {
+                byte[] bytes = product.getBytes(StandardCharsets.UTF_8);
+                footer.writeInt(bytes.length);
+                footer.write(bytes);
+            }
+            footer.writeInt(blockCount);
+            for (int b = 0; b < blockCount; b++) {
+                footer.writeLong(blockOffsets[b]);
+                footer.writeInt(blockRows[b]);
+                footer.writeByte(blockCodecs[b]);
+                footer.writeInt(blockStoredLengths[b]);
+                footer.writeInt(blockRawLengths[b]);
+                footer.writeInt(blockChecksums[b]);
+            }
+            for (int p = 0; p < dictionary.size(); p++) {
+                footer.writeInt((int) stats.get(p)[0]);
+                footer.writeLong(stats.get(p)[1]);
+                footer.writeDouble(values.get(p)[0]);
+                footer.writeDouble(values.get(p)[1]);
+                long[] mask = masks.get(p);
+                footer.writeInt(mask.length);
+                for (long word : mask) {
+                    footer.writeLong(word);
+                }
+            }
+            footer.flush();
+            footerBytes.writeTo(out);
+            crc.reset();
+            crc.update(footerBytes.toByteArray());
+
+            // Cauda
+            out.writeLong(footerOffset);
+            out.writeInt(n);
+            out.writeInt((int) crc.getValue());
+            out.writeInt(MAGIC);
+        }
+        AtomicFile.replace(tmp, file);
+    }
+
+    // CRC32C de uma zona do buffer (sem copiar)
+    private static int checksum(ByteBuffer buffer, int offset, int length) {
+        CRC32C crc = new CRC32C();
+        crc.update(buffer.duplicate().position(offset).limit(offset + length));
+        return (int) crc.getValue();
+    }
+
+    // O preço pode ser guardado em cêntimos sem perder precisão?
+    private static boolean isCents(double price) {
+        return Math.abs(price) < 1e13 && Double.compare(Math.round(price * 100) / 100.0, price) == 0;
+    }
+}
@@ -0,0 +1,398 @@
+package server.persistence;
+
+import geral.Protocol.Event;
+import geral.Serializer;
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32C;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Write-ahead log dos eventos do dia corrente (um ficheiro wal_N.log por dia).
+ * Cada addEvent acrescenta um registo ao fim do ficheiro; o custo de tornar o
+ * registo durável depende da política de sincronização:
+ * <ul>
+ *   <li>PER_EVENT - fsync antes de confirmar cada evento (pedidos concorrentes partilham o fsync);</li>
+ *   <li>GROUP - group commit: uma thread de fundo faz fsync a cada X ms ou Y eventos
+ *       e quem espera é acordado quando o seu lote fica durável;</li>
+ *   <li>OS - os registos vão para o sistema operativo a cada X ms, sem fsync.</li>
+ * </ul>
+ * O log de um dia contém todos os eventos desse dia, pelo que no arranque basta reproduzi-lo.
+ * Cada registo leva o seu comprimento e um CRC32C; a reprodução pára no primeiro registo
+ * incompleto ou com checksum errado (a cauda escrita durante um crash).
+ * <p>
+ * Se um fsync falhar, os registos ainda não duráveis não podem ser dados como guardados: quem
+ * espera por eles (e por qualquer registo seguinte no mesmo ficheiro) recebe a IOException, até
+ * a troca de dia abrir um ficheiro novo.
+ */
+public class EventLog {
+    public enum SyncPolicy {
+        PER_EVENT, GROUP, OS
+    }
+
+    private static final int MAGIC = 0x57414C32; // "WAL2"
+    private static final int LEGACY_MAGIC = 0x57414C31; // "WAL1" (registos sem comprimento nem checksum)
+    private static final int MAX_RECORD_SIZE = 1 << 20;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File baseDir;
+    private final SyncPolicy policy;
+    private final long groupCommitNanos;
+    private final int groupCommitEvents;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition durableAdvanced = lock.newCondition();
+    private final Condition flushNeeded = lock.newCondition();
+
+    private int dayId = -1;
+    private FileOutputStream fileOut;
+    private DataOutputStream out;
+    private long appendedSeq = 0;   // Último registo escrito no buffer
+    private long durableSeq = 0;    // Último registo garantidamente em disco (ou no SO, com OS)
+    private boolean syncing = false; // Há uma thread a fazer fsync neste momento
+    private IOException syncFailure;  // Último fsync falhado (null se nunca falhou)
+    private long failedFrom = Long.MAX_VALUE; // Registos de failedFrom a failedUpTo não ficaram duráveis
+    private long failedUpTo = Long.MAX_VALUE; // MAX_VALUE enquanto o ficheiro que falhou estiver em uso
+    private final ByteArrayOutputStream recordBuffer = new ByteArrayOutputStream(256); // Usado com o lock
+    private final DataOutputStream recordOut = new DataOutputStream(recordBuffer);
+    private final CRC32C recordCrc = new CRC32C();
+
+    public EventLog(File baseDir, SyncPolicy policy, long groupCommitMillis, int groupCommitEvents) {
+        this.baseDir = baseDir;
+        this.policy = policy;
+        this.groupCommitNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, groupCommitMillis));
+        this.groupCommitEvents = Math.max(1, groupCommitEvents);
+
+        if (policy != SyncPolicy.PER_EVENT) {
+            Thread flusher = new Thread(this::flushLoop, "WAL-Flusher");
+            flusher.setDaemon(true);
+            flusher.start();
+        }
+    }
+
+    /**
+     * Cria o log a partir das propriedades do sistema:
+     * wal.sync (event|group|os), wal.groupMillis e wal.groupEvents.
+     */
+    public static EventLog fromSystemProperties(File baseDir) {
+        String sync = System.getProperty("wal.sync", "group").trim().toLowerCase();
+        SyncPolicy policy;
+        switch (sync) {
+            case "event":
+                policy = SyncPolicy.PER_EVENT;
+                break;
+            case "os":
+                policy = SyncPolicy.OS;
+                break;
+            default:
+                policy = SyncPolicy.GROUP;
+        }
+        return new EventLog(baseDir, policy,
+            Long.getLong("wal.groupMillis", 2), Integer.getInteger("wal.groupEvents", 512));
+    }
+
+    public SyncPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Acrescenta um evento ao log do dia indicado (abre o ficheiro do dia se necessário).
+     * Não espera pelo disco; deve ser chamado pela ordem em que os eventos são aplicados.
+     * @return número de sequência a passar a {@link #awaitDurable(long)}
+     */
+    public long append(int dayId, Event event) throws IOException {
+        lock.lock();
+        try {
+            if (this.dayId != dayId || out == null) {
+                openDay(dayId, false);
+            }
+            writeRecord(out, event);
+            long seq = ++appendedSeq;
+            if (policy == SyncPolicy.GROUP && seq - durableSeq >= groupCommitEvents) {
+                flushNeeded.signal();
+            }
+            return seq;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Bloqueia até o registo com o número de sequência dado estar durável
+     * (segundo a política configurada).
+     */
+    public void awaitDurable(long seq) throws IOException {
+        if (policy == SyncPolicy.OS) {
+            return;
+        }
+        lock.lock();
+        try {
+            while (true) {
+                if (syncFailure != null && seq >= failedFrom && seq <= failedUpTo) {
+                    throw new IOException("Falha ao sincronizar o WAL: " + syncFailure.getMessage(), syncFailure);
+                }
+                if (durableSeq >= seq) {
+                    return;
+                }
+                if (policy == SyncPolicy.PER_EVENT && !syncing) {
+                    // Esta thread faz o fsync, que cobre também os registos de quem chegou entretanto
+                    syncLocked();
+                } else {
+                    durableAdvanced.awaitUninterruptibly();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Fecha o log corrente (depois de o sincronizar) e abre o do novo dia.
+     */
+    public void startDay(int newDayId) throws IOException {
+        lock.lock();
+        try {
+            if (out != null && !isBroken()) {
+                syncLocked();
+            }
+            openDay(newDayId, false);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Apaga o log de um dia (depois de o dia estar selado em day_N.dat).
+     */
+    public void deleteDay(int id) {
+        lock.lock();
+        try {
+            waitForSync();
+            if (id == dayId && out != null) {
+                closeQuietly();
+            }
+        } finally {
+            lock.unlock();
+        }
+        File file = fileFor(id);
+        if (file.exists()) {
+            file.delete();
+        }
+    }
+
+    public boolean exists(int id) {
+        return fileFor(id).exists();
+    }
+
+    /**
+     * Lê todos os eventos do log de um dia. Um registo final incompleto
+     * (crash a meio de uma escrita) é ignorado.
+     */
+    public List<Event> replay(int id) throws IOException {
+        List<Event> events = new ArrayList<>();
+        File file = fileFor(id);
+        if (!file.exists()) {
+            return events;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            int magic = in.readInt();
+            if ((magic != MAGIC && magic != LEGACY_MAGIC) || in.readInt() != id) {
+                throw new IOException("WAL inválido: " + file.getName());
+            }
+            while (true) {
+                try {
+                    Event event = magic == MAGIC ? readRecord(in) : readLegacyRecord(in);
+                    if (event == null) {
+                        System.err.println("WAL do dia " + id + ": registo corrompido, o resto do log é ignorado");
+                        break;
+                    }
+                    events.add(event);
+                } catch (EOFException e) {
+                    break; // Fim do log (ou cauda truncada)
+                }
+            }
+        } catch (EOFException e) {
+            // Cabeçalho incompleto: log vazio
+        }
+        return events;
+    }
+
+    /**
+     * Reescreve o log de um dia apenas com os eventos dados (estado recuperado no arranque).
+     * Descarta uma eventual cauda incompleta e migra o conteúdo de current.dat quando ainda não há log.
+     */
+    public void rewrite(int id, List<Event> events) throws IOException {
+        lock.lock();
+        try {
+            openDay(id, true);
+            for (Event event : events) {
+                writeRecord(out, event);
+                appendedSeq++;
+            }
+            syncLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // ==================== Internos ====================
+
+    private File fileFor(int id) {
+        return new File(baseDir, String.format("wal_%d.log", id));
+    }
+
+    // Chamado com o lock adquirido
+    private void openDay(int id, boolean truncate) throws IOException {
+        waitForSync();
+        if (isBroken()) {
+            failedUpTo = appendedSeq; // Os registos do ficheiro que falhou ficam perdidos; os do novo não
+        }
+        if (out != null) {
+            try {
+                out.flush();
+            } catch (IOException e) {
+                System.err.println("Erro ao escrever WAL: " + e.getMessage());
+            }
+            closeQuietly();
+        }
+        File file = fileFor(id);
+        boolean isNew = truncate || !file.exists() || file.length() == 0;
+        fileOut = new FileOutputStream(file, !truncate);
+        out = new DataOutputStream(new BufferedOutputStream(fileOut, BUFFER_SIZE));
+        dayId = id;
+        if (isNew) {
+            out.writeInt(MAGIC);
+            out.writeInt(id);
+        }
+    }
+
+    private void closeQuietly() {
+        try {
+            out.close();
+        } catch (IOException e) {
+            System.err.println("Erro ao fechar WAL: " + e.getMessage());
+        }
+        out = null;
+        fileOut = null;
+        dayId = -1;
+    }
+
+    // Espera que termine um fsync em curso (o ficheiro não pode ser fechado a meio)
+    private void waitForSync() {
+        while (syncing) {
+            durableAdvanced.awaitUninterruptibly();
+        }
+    }
+
+    // Escreve o buffer para o SO e faz fsync. O fsync corre sem o lock para não travar novos appends.
+    private void syncLocked() throws IOException {
+        waitForSync();
+        if (out == null) {
+            durableSeq = appendedSeq;
+            durableAdvanced.signalAll();
+            return;
+        }
+        if (isBroken()) {
+            throw new IOException("WAL do dia " + dayId + " inutilizável: " + syncFailure.getMessage(), syncFailure);
+        }
+        long target = appendedSeq;
+        syncing = true;
+        try {
+            out.flush();
+            FileChannel channel = fileOut.getChannel();
+            lock.unlock();
+            try {
+                if (policy != SyncPolicy.OS) {
+                    channel.force(false);
+                }
+            } finally {
+                lock.lock();
+            }
+            if (target > durableSeq) {
+                durableSeq = target;
+            }
+        } catch (IOException e) {
+            // Tudo o que ainda não estava durável (e o que vier a seguir neste ficheiro) falha
+            syncFailure = e;
+            failedFrom = durableSeq + 1;
+            failedUpTo = Long.MAX_VALUE;
+            throw e;
+        } finally {
+            syncing = false;
+            durableAdvanced.signalAll(); // Acorda também quem esperava por este fsync, para ver o erro
+        }
+    }
+
+    // Chamado com o lock: o ficheiro corrente teve um fsync falhado
+    private boolean isBroken() {
+        return syncFailure != null && failedUpTo == Long.MAX_VALUE;
+    }
+
+    // Thread de fundo para GROUP e OS
+    private void flushLoop() {
+        lock.lock();
+        try {
+            while (true) {
+                try {
+                    flushNeeded.awaitNanos(groupCommitNanos);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (appendedSeq > durableSeq && !syncing && !isBroken()) {
+                    try {
+                        syncLocked();
+                    } catch (IOException e) {
+                        System.err.println("Erro ao sincronizar WAL: " + e.getMessage());
+                    }
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Chamado com o lock adquirido: [comprimento int][CRC32C int][evento]
+    private void writeRecord(DataOutputStream out, Event event) throws IOException {
+        recordBuffer.reset();
+        Serializer.writeString(recordOut, event.getProduct());
+        recordOut.writeInt(event.getQuantity());
+        recordOut.writeDouble(event.getPrice());
+        recordOut.writeLong(event.getTimestamp());
+        byte[] payload = recordBuffer.toByteArray();
+        recordCrc.reset();
+        recordCrc.update(payload);
+        out.writeInt(payload.length);
+        out.writeInt((int) recordCrc.getValue());
+        out.write(payload);
+    }
+
+    // null se o registo estiver corrompido
+    private static Event readRecord(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        int expected = in.readInt();
+        if (length <= 0 || length > MAX_RECORD_SIZE) {
+            return null;
+        }
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        CRC32C crc = new CRC32C();
+        crc.update(payload);
+        if ((int) crc.getValue() != expected) {
+            return null;
+        }
+        return readLegacyRecord(new DataInputStream(new ByteArrayInputStream(payload)));
+    }
+
+    private static Event readLegacyRecord(DataInputStream in) throws IOException {
+        String product = Serializer.readString(in);
+        int quantity = in.readInt();
+        double price = in.readDouble();
+        long timestamp = in.readLong();
+        return new Event(product, quantity, price, timestamp);
+    }
+}
@@ -1,7 +1,9 @@
 package server.persistence;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import server.Authentication;
 import server.TimeSeriesManager;
 import server.User;
@@ -13,6 +15,7 @@ import server.User;
 public class PersistenceManager {
     private static final String DEFAULT_DATA_DIR = "data";
     private static final String USERS_FILE = "users.dat";
+    private static final String USERS_LOG = "users.log";
     private static final String TIMESERIES_DIR = "timeseries";
     
     private final String dataDirectory;
@@ -25,7 +28,8 @@ public class PersistenceManager {
     
     public PersistenceManager(String dataDirectory) {
         this.dataDirectory = dataDirectory;
-        this.userPersistence = new UserPersistence(dataDirectory + "/" + USERS_FILE);
+        this.userPersistence = UserPersistence.fromSystemProperties(
+            dataDirectory + "/" + USERS_FILE, dataDirectory + "/" + USERS_LOG);
         this.timeSeriesPersistence = new TimeSeriesPersistence(dataDirectory + "/" + TIMESERIES_DIR);
     }
     
@@ -38,10 +42,13 @@ public class PersistenceManager {
     public void saveAll(Authentication auth, TimeSeriesManager tsManager) throws IOException {
         System.out.println("A guardar dados...");
         
-        // Guardar utilizadores
-        List<User> users = getAllUsers(auth);
-        userPersistence.save(users);
-        System.out.println("  - Utilizadores: " + users.size());
+        // Utilizadores: cada registo já está no journal; o snapshot só é reescrito quando o journal cresce
+        if (userPersistence.compactIfNeeded(() -> getAllUsers(auth))) {
+            System.out.println("  - Utilizadores: " + auth.getUserCount() + " (journal compactado)");
+        } else {
+            System.out.println("  - Utilizadores: " + auth.getUserCount() + " (" + userPersistence.getLogRecordCount()
+                + " registos no journal)");
+        }
         
         // Guardar séries temporais
         timeSeriesPersistence.saveState(tsManager);
@@ -54,6 +61,9 @@ public class PersistenceManager {
     
     /**
      * Carrega todos os dados do servidor.
+     * Os utilizadores são lidos numa thread à parte enquanto se recupera o índice de dias e o dia corrente;
+     * os dias históricos só são abertos quando pedidos (os mais recentes são aquecidos em segundo plano,
+     * sem atrasar o arranque).
      * @param auth Gestor de autenticação (será preenchido)
      * @param maxDays Valor de D (D)
      * @param maxMemoryDays Valor de S (S)
@@ -62,49 +72,91 @@ public class PersistenceManager {
      */
     public TimeSeriesManager loadAll(Authentication auth, int maxDays, int maxMemoryDays) throws IOException {
         System.out.println("A carregar dados...");
+        long loadStart = System.nanoTime();
         
-        // Carregar utilizadores
-        List<User> users = userPersistence.load();
-        if (users != null) {
-            for (User user : users) {
-                auth.register(user);
-            }
-            System.out.println("  - Utilizadores: " + users.size());
-        } else {
-             System.out.println("  - Utilizadores: 0");
-        }
+        // Carregar utilizadores em paralelo com as séries temporais
+        CompletableFuture<List<User>> usersFuture = CompletableFuture.supplyAsync(this::loadUsers);
         
         // Carregar séries temporais
         TimeSeriesManager tsManager;
-        int[] meta = timeSeriesPersistence.loadMetadata();
+        int[] meta;
+        try {
+            meta = timeSeriesPersistence.loadMetadata();
+        } catch (IOException e) {
+            // Metadata corrompida: o dia corrente é deduzido dos ficheiros de dias e WALs
+            int inferred = timeSeriesPersistence.inferCurrentDayId();
+            System.err.println("  - Metadata inválida (" + e.getMessage() + "), dia corrente deduzido: " + inferred);
+            meta = inferred < 0 ? null : new int[]{maxDays, inferred};
+        }
+        if (meta != null) {
+            // Um WAL mais recente do que a metadata (escrita da metadata falhou na troca de dia)
+            // é o dia corrente: os dias anteriores são selados a partir dos seus WALs
+            int newest = timeSeriesPersistence.inferCurrentDayId();
+            if (newest > meta[1]) {
+                System.err.println("  - Metadata indica o dia " + meta[1] + ", mas existe o dia " + newest + " em disco");
+                meta[1] = newest;
+            }
+        }
         
         if (meta == null) {
             System.out.println("  - Nenhuma série temporal encontrada, criando nova");
              // Nota: timeSeriesPersistence é uma instância da classe, precisamos passá-la
             tsManager = new TimeSeriesManager(maxDays, maxMemoryDays, timeSeriesPersistence);
+            // Pode haver WAL do dia 0 se o servidor caiu antes do primeiro save
+            timeSeriesPersistence.loadState(tsManager);
         } else {
             // Recriar usando configuração atual (maxMemoryDays)
             tsManager = new TimeSeriesManager(maxDays, maxMemoryDays, timeSeriesPersistence);
-            timeSeriesPersistence.loadState(tsManager);
+            // O dia corrente tem de ser definido antes de carregar os eventos (setCurrentDayId cria um dia vazio)
             tsManager.setCurrentDayId(meta[1]);
-            // Nota: historicalDays começa vazio, será populado lazy
+            timeSeriesPersistence.recoverUnsealedDays(meta[1]);
+            timeSeriesPersistence.loadState(tsManager);
+            // historicalDays começa vazio: os S dias mais recentes são mapeados em paralelo na cache de dias,
+            // enquanto o servidor já aceita pedidos (um dia ainda não aquecido é aberto quando for pedido)
+            long warmStart = System.nanoTime();
+            tsManager.warmRecentDays().thenRun(() -> System.out.println("Aquecimento concluído: "
+                + timeSeriesPersistence.getDayCache().size() + " dias em cache ("
+                + (System.nanoTime() - warmStart) / 1_000_000 + " ms)"));
             
             System.out.println("  - Dia corrente: " + tsManager.getCurrentDayId());
             System.out.println("  - Dias históricos (total): " + tsManager.getHistoricalDayCount());
         }
         
-        System.out.println("Dados carregados com sucesso!");
+        List<User> users = usersFuture.join();
+        for (User user : users) {
+            auth.register(user);
+        }
+        System.out.println("  - Utilizadores: " + users.size());
+        
+        System.out.println("Dados carregados com sucesso! (" + (System.nanoTime() - loadStart) / 1_000_000 + " ms)");
         return tsManager;
     }
+
+    // Carrega os utilizadores (um ficheiro corrompido não impede o carregamento das séries temporais)
+    private List<User> loadUsers() {
+        try {
+            return userPersistence.load();
+        } catch (IOException e) {
+            System.err.println("  - Snapshot de utilizadores não carregado: " + e.getMessage());
+            // Guardar o ficheiro corrompido à parte para não ser substituído no próximo save;
+            // os registos feitos depois do último snapshot continuam no journal
+            userPersistence.quarantineSnapshot(".corrupt");
+            try {
+                return userPersistence.load();
+            } catch (IOException journalError) {
+                System.err.println("  - Utilizadores não carregados: " + journalError.getMessage());
+                return new ArrayList<>();
+            }
+        }
+    }
     
     /**
-     * Guarda apenas utilizadores.
+     * Guarda apenas utilizadores (compacta o journal num snapshot).
      * @param auth Gestor de autenticação
      * @throws IOException se falhar a escrita
      */
     public void saveUsers(Authentication auth) throws IOException {
-        List<User> users = getAllUsers(auth);
-        userPersistence.save(users);
+        userPersistence.compact(() -> getAllUsers(auth));
     }
     
     /**
@@ -131,6 +183,10 @@ public class PersistenceManager {
         return dataDirectory;
     }
 
+    public UserPersistence getUserPersistence() {
+        return userPersistence;
+    }
+
     public TimeSeriesPersistence getTimeSeriesPersistence() {
         return timeSeriesPersistence;
     }
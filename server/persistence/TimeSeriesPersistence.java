@@ -4,7 +4,12 @@ import geral.Protocol.Event;
 import geral.Serializer;
 import java.io.*;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import server.TimeSeriesManager;
 
@@ -13,23 +18,67 @@ import server.TimeSeriesManager;
  */
 public class TimeSeriesPersistence {
     private final File baseDir;
+    private final EventLog eventLog; // WAL do dia corrente
+    private final BlockCodec dayCodec; // Compressão dos dias selados (o dia corrente nunca é comprimido)
+    private final DayCache dayCache; // Dias em disco já mapeados
+    private final Set<Integer> corruptedDays = ConcurrentHashMap.newKeySet(); // Dias ignorados por estarem corrompidos
     private static final String METADATA_FILE = "metadata.dat";
     private static final String CURRENT_DAY_FILE = "current.dat";
+    private static final int ROW_FORMAT_MAGIC = 0x45565432; // "EVT2"
     private static final Pattern DAY_FILE_PATTERN = Pattern.compile("day_(\\d+)\\.dat");
+    private static final Pattern WAL_FILE_PATTERN = Pattern.compile("wal_(\\d+)\\.log");
     
     public TimeSeriesPersistence(String dirPath) {
         this.baseDir = new File(dirPath);
         if (!baseDir.exists()) {
             baseDir.mkdirs();
         }
+        this.eventLog = EventLog.fromSystemProperties(baseDir);
+        this.dayCodec = BlockCodec.fromSystemProperties();
+        this.dayCache = DayCache.fromSystemProperties(this::mapDay);
     }
 
     /**
-     * Guarda um dia específico no disco.
+     * Regista um novo evento do dia corrente no WAL (sem esperar pelo disco).
+     * @return número de sequência para {@link #awaitDurable(long)}
+     */
+    public long logEvent(int dayId, Event event) throws IOException {
+        return eventLog.append(dayId, event);
+    }
+
+    /**
+     * Espera até o evento registado com este número de sequência estar durável.
+     */
+    public void awaitDurable(long seq) throws IOException {
+        eventLog.awaitDurable(seq);
+    }
+
+    /**
+     * Fecha o WAL do dia selado e abre o do novo dia.
+     */
+    public void startDayLog(int dayId) throws IOException {
+        eventLog.startDay(dayId);
+    }
+
+    /**
+     * Apaga o WAL de um dia já guardado em day_N.dat.
+     */
+    public void deleteDayLog(int dayId) {
+        eventLog.deleteDay(dayId);
+    }
+
+    public EventLog getEventLog() {
+        return eventLog;
+    }
+
+    /**
+     * Guarda um dia específico no disco (formato colunar, ver {@link DayFile}).
      */
     public void saveDay(int dayId, List<Event> events) throws IOException {
         File dayFile = new File(baseDir, String.format("day_%d.dat", dayId));
-        writeEventFile(dayFile, events);
+        DayFile.write(dayFile, events, dayCodec);
+        dayCache.invalidate(dayId);
+        corruptedDays.remove(dayId); // Ficheiro reescrito (por exemplo, selado de novo a partir do WAL)
     }
 
     /**
@@ -38,16 +87,71 @@ public class TimeSeriesPersistence {
      */
     public List<Event> loadDay(int dayId) throws IOException {
         File dayFile = new File(baseDir, String.format("day_%d.dat", dayId));
-        if (!dayFile.exists()) {
+        if (!dayFile.exists() || corruptedDays.contains(dayId)) {
             return new ArrayList<>();
         }
-        return readEventFile(dayFile);
+        if (DayFile.isColumnar(dayFile)) {
+            return DayFile.open(dayFile).toEvents();
+        }
+        return readEventFile(dayFile); // Formato antigo (sequência de eventos)
+    }
+
+    /**
+     * Mapeia um dia em memória para consultas sem materializar eventos (via {@link DayCache}).
+     * @return o dia mapeado, ou null se não existir ou estiver no formato antigo
+     */
+    public DayFile openDay(int dayId) throws IOException {
+        return dayCache.get(dayId);
+    }
+
+    /**
+     * Pede à cache que carregue um dia em segundo plano (próximo dia de uma leitura sequencial).
+     */
+    public void prefetchDay(int dayId) {
+        if (dayId >= 0) {
+            dayCache.prefetch(dayId);
+        }
+    }
+
+    /**
+     * Carrega vários dias para a cache em paralelo.
+     */
+    public CompletableFuture<Void> warmDays(Collection<Integer> dayIds) {
+        return dayCache.warm(dayIds);
+    }
+
+    public DayCache getDayCache() {
+        return dayCache;
+    }
+
+    /**
+     * Dias cujo ficheiro está corrompido (ignorados nas consultas).
+     */
+    public Set<Integer> getCorruptedDays() {
+        return corruptedDays;
+    }
+
+    private DayFile mapDay(int dayId) throws IOException {
+        File dayFile = new File(baseDir, String.format("day_%d.dat", dayId));
+        if (!dayFile.exists() || corruptedDays.contains(dayId) || !DayFile.isColumnar(dayFile)) {
+            return null;
+        }
+        try {
+            return DayFile.open(dayFile);
+        } catch (IOException e) {
+            // Um dia corrompido é ignorado (e reportado uma vez) em vez de fazer falhar todas as consultas
+            if (corruptedDays.add(dayId)) {
+                System.err.println("Dia " + dayId + " ignorado: " + e.getMessage());
+            }
+            return null;
+        }
     }
     
     /**
      * Apaga um dia do disco (para limpar dias > D).
      */
     public void deleteDay(int dayId) {
+        dayCache.invalidate(dayId);
         File dayFile = new File(baseDir, String.format("day_%d.dat", dayId));
         if (dayFile.exists()) {
             dayFile.delete();
@@ -55,25 +159,66 @@ public class TimeSeriesPersistence {
     }
     
     /**
-     * Guarda o TimeSeriesManager no disco (Metadata e Current Day).
-     * Os dias históricos já devem ser persistidos incrementalmente em newDay().
+     * Guarda o estado do TimeSeriesManager no disco (metadata).
+     * O dia corrente já está no WAL e os dias históricos são persistidos em newDay(),
+     * por isso guardar não custa O(tamanho do dia).
      */
     public void saveState(TimeSeriesManager manager) throws IOException {
-        // 1. Guardar Metadata
         writeMetadata(manager);
-        
-        // 2. Guardar dia corrente (ainda incompleto)
-        List<Event> currentDayEvents = manager.getCurrentDayEvents();
-        writeEventFile(new File(baseDir, CURRENT_DAY_FILE), currentDayEvents);
+    }
+
+    /**
+     * Sela dias anteriores ao corrente que ficaram só no WAL (o servidor caiu antes de
+     * day_N.dat ser escrito) e apaga WALs de dias que já estão em disco.
+     */
+    public void recoverUnsealedDays(int currentDayId) throws IOException {
+        File[] files = baseDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            Matcher m = WAL_FILE_PATTERN.matcher(file.getName());
+            if (!m.matches()) {
+                continue;
+            }
+            int dayId = Integer.parseInt(m.group(1));
+            if (dayId >= currentDayId) {
+                continue;
+            }
+            File dayFile = new File(baseDir, String.format("day_%d.dat", dayId));
+            try {
+                if (!dayFile.exists()) {
+                    saveDay(dayId, eventLog.replay(dayId));
+                    System.out.println("  - Dia " + dayId + " recuperado do WAL");
+                }
+                eventLog.deleteDay(dayId);
+            } catch (IOException e) {
+                // O WAL fica em disco para nova tentativa no próximo arranque
+                System.err.println("  - Dia " + dayId + " não recuperado do WAL: " + e.getMessage());
+            }
+        }
     }
 
     /**
      * Carrega o estado do dia corrente para o manager.
+     * Se existir WAL para o dia corrente, é a fonte mais recente (contém todos os eventos do dia);
+     * caso contrário usa-se current.dat. O WAL é reescrito com o estado recuperado.
      */
     public void loadState(TimeSeriesManager manager) throws IOException {
-        List<Event> currentEvents = loadCurrentDay();
-        for (Event event : currentEvents) {
-            manager.addEvent(event);
+        int dayId = manager.getCurrentDayId();
+        List<Event> currentEvents;
+        if (eventLog.exists(dayId)) {
+            currentEvents = eventLog.replay(dayId);
+            System.out.println("  - WAL do dia " + dayId + ": " + currentEvents.size() + " eventos reproduzidos");
+        } else {
+            currentEvents = loadCurrentDay();
+        }
+        manager.loadCurrentDayEvents(currentEvents);
+        eventLog.rewrite(dayId, currentEvents);
+        // current.dat (versões anteriores) já foi migrado para o WAL e deixou de ser escrito
+        File currentFile = new File(baseDir, CURRENT_DAY_FILE);
+        if (currentFile.exists()) {
+            currentFile.delete();
         }
     }
     
@@ -100,66 +245,103 @@ public class TimeSeriesPersistence {
         return new ArrayList<>();
     }
     
-    private void writeMetadata(TimeSeriesManager manager) throws IOException {
-        File file = new File(baseDir, METADATA_FILE);
-        try (DataOutputStream out = new DataOutputStream(
-                new BufferedOutputStream(new FileOutputStream(file)))) {
-            out.writeInt(manager.getMaxDays());
-            out.writeInt(manager.getCurrentDayId());
+    /**
+     * Guarda apenas a metadata (D e dia corrente).
+     */
+    public void saveMetadata(int maxDays, int currentDayId) throws IOException {
+        AtomicFile.write(new File(baseDir, METADATA_FILE), out -> {
+            out.writeInt(maxDays);
+            out.writeInt(currentDayId);
+        });
+    }
+
+    /**
+     * Dia corrente deduzido dos ficheiros existentes (quando a metadata não pode ser lida):
+     * o dia a seguir ao último day_N.dat, ou o WAL mais recente se for posterior.
+     * @return o id do dia, ou -1 se não houver ficheiros de dias
+     */
+    public int inferCurrentDayId() {
+        int result = -1;
+        File[] files = baseDir.listFiles();
+        if (files == null) {
+            return result;
         }
+        for (File file : files) {
+            Matcher day = DAY_FILE_PATTERN.matcher(file.getName());
+            Matcher wal = WAL_FILE_PATTERN.matcher(file.getName());
+            if (day.matches()) {
+                result = Math.max(result, Integer.parseInt(day.group(1)) + 1);
+            } else if (wal.matches()) {
+                result = Math.max(result, Integer.parseInt(wal.group(1)));
+            }
+        }
+        return result;
+    }
+
+    private void writeMetadata(TimeSeriesManager manager) throws IOException {
+        saveMetadata(manager.getMaxDays(), manager.getCurrentDayId());
     }
     
     private int[] readMetadata() throws IOException {
         File file = new File(baseDir, METADATA_FILE);
-        try (DataInputStream in = new DataInputStream(
-                new BufferedInputStream(new FileInputStream(file)))) {
+        try (DataInputStream in = AtomicFile.read(file)) {
             int maxDays = in.readInt();
             int currentDayId = in.readInt();
             return new int[]{maxDays, currentDayId};
         }
     }
 
-    private void writeEventFile(File file, List<Event> events) throws IOException {
-        try (DataOutputStream out = new DataOutputStream(
-                new BufferedOutputStream(new FileOutputStream(file)))) {
-            out.writeInt(events.size());
-            for (Event event : events) {
-                writeEvent(out, event);
-            }
-        }
-    }
-    
     private List<Event> readEventFile(File file) throws IOException {
-        try (DataInputStream in = new DataInputStream(
-                new BufferedInputStream(new FileInputStream(file)))) {
+        try (DataInputStream in = AtomicFile.read(file)) {
             return readEventList(in);
         }
     }
 
-    // Métodos auxiliares de leitura/escrita de eventos
+    // Métodos auxiliares de leitura de eventos (current.dat de versões anteriores, só lido para migração)
+    // Formato mais recente: [magic][nº eventos] e por evento [id produto varint (+ nome na 1ª ocorrência)]
+    // [quantidade varint][preço double][timestamp delta-of-delta varint].
+    // O formato antigo ([nº eventos] e [produto string][quantidade int][preço double]) continua legível.
     
     private List<Event> readEventList(DataInputStream in) throws IOException {
+        int header = in.readInt();
+        if (header != ROW_FORMAT_MAGIC) {
+            return readLegacyEventList(in, header);
+        }
         int eventCount = in.readInt();
-        List<Event> events = new ArrayList<>();
+        List<Event> events = new ArrayList<>(eventCount);
+        List<String> dictionary = new ArrayList<>();
+        Serializer.TimestampCodec timestamps = new Serializer.TimestampCodec();
         
         for (int i = 0; i < eventCount; i++) {
-            Event event = readEvent(in);
-            events.add(event);
+            events.add(readEvent(in, dictionary, timestamps));
         }
         
         return events;
     }
     
-    private void writeEvent(DataOutputStream out, Event event) throws IOException {
-        Serializer.writeString(out, event.getProduct());
-        out.writeInt(event.getQuantity());
-        out.writeDouble(event.getPrice());
+    private Event readEvent(DataInputStream in, List<String> dictionary,
+                            Serializer.TimestampCodec timestamps) throws IOException {
+        int id = Serializer.readVarInt(in);
+        if (id == dictionary.size()) {
+            dictionary.add(Serializer.readString(in));
+        } else if (id > dictionary.size()) {
+            throw new IOException("Produto desconhecido no ficheiro de eventos: " + id);
+        }
+        int quantity = Serializer.unzigzag(Serializer.readVarInt(in));
+        double price = in.readDouble();
+        long timestamp = timestamps.read(in);
+        return new Event(dictionary.get(id), quantity, price, timestamp);
     }
     
-    private Event readEvent(DataInputStream in) throws IOException {
-        String product = Serializer.readString(in);
-        int quantity = in.readInt();
-        double price = in.readDouble();
-        return new Event(product, quantity, price);
+    // Formato antigo, sem timestamps: os eventos ficam com o instante da leitura
+    private List<Event> readLegacyEventList(DataInputStream in, int eventCount) throws IOException {
+        List<Event> events = new ArrayList<>();
+        for (int i = 0; i < eventCount; i++) {
+            String product = Serializer.readString(in);
+            int quantity = in.readInt();
+            double price = in.readDouble();
+            events.add(new Event(product, quantity, price));
+        }
+        return events;
     }
 }
@@ -2,22 +2,147 @@ package server.persistence;
 
 import java.io.*;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32C;
 import server.User;
 
 /**
  * Persistência de utilizadores.
- * Guarda e carrega utilizadores em formato binário.
+ * <p>
+ * Cada registo novo é acrescentado a um journal (users.log) e sincronizado com o disco antes de
+ * ser confirmado, com custo O(1). Periodicamente o journal é compactado num snapshot (users.dat)
+ * com todos os utilizadores e recomeça vazio. O estado completo é o snapshot seguido do journal.
+ * <p>
+ * Registos do journal: [comprimento int][CRC32C int][utilizador]; a leitura pára no primeiro
+ * registo incompleto ou corrompido (cauda escrita durante um crash), que é descartado.
+ * <p>
+ * Cada utilizador é guardado como [username][iterações int][salt][hash PBKDF2] (versão 2 do snapshot,
+ * journal "ULG2"). Ficheiros antigos, com a password em claro (versão 1, journal "ULG1"), são
+ * convertidos no carregamento e reescritos de imediato no formato novo.
  */
 public class UserPersistence {
+    private static final int SNAPSHOT_MAGIC = 0x55534552; // "USER"
+    private static final int SNAPSHOT_VERSION = 2;
+    private static final int LEGACY_SNAPSHOT_VERSION = 1; // Password em claro
+    private static final int LOG_MAGIC = 0x554C4732; // "ULG2"
+    private static final int LEGACY_LOG_MAGIC = 0x554C4731; // "ULG1" (password em claro)
+    private static final int LOG_HEADER_SIZE = 4;
+    private static final int MAX_RECORD_SIZE = 64 * 1024;
+    
     private final String filePath;
+    private final String logPath;
+    private final int compactThreshold;
+    
+    // Protege o journal; a compactação também o segura para nenhum registo se perder entre o snapshot e o reset
+    private final ReentrantLock logLock = new ReentrantLock();
+    private FileOutputStream logOut; // Aberto no primeiro registo
+    private int logRecords = 0;      // Registos no journal desde o último snapshot
+    private final ByteArrayOutputStream recordBuffer = new ByteArrayOutputStream(128); // Usado com o lock
+    private final DataOutputStream recordOut = new DataOutputStream(recordBuffer);
+    private final CRC32C recordCrc = new CRC32C();
+    private final List<String[]> legacyCredentials = new ArrayList<>(); // [username, password] lidos de ficheiros antigos
+    private boolean legacyLog = false; // O journal existente está no formato antigo
     
-    public UserPersistence(String filePath) {
+    /**
+     * @param filePath snapshot (users.dat)
+     * @param logPath journal de registos (users.log)
+     * @param compactThreshold número de registos no journal a partir do qual {@link #compactIfNeeded} compacta
+     */
+    public UserPersistence(String filePath, String logPath, int compactThreshold) {
         this.filePath = filePath;
+        this.logPath = logPath;
+        this.compactThreshold = Math.max(1, compactThreshold);
+    }
+    
+    /**
+     * Cria a persistência de utilizadores; users.compactEvery define o limiar de compactação (por omissão 1024).
+     */
+    public static UserPersistence fromSystemProperties(String filePath, String logPath) {
+        return new UserPersistence(filePath, logPath, Integer.getInteger("users.compactEvery", 1024));
+    }
+    
+    /**
+     * Acrescenta um utilizador registado ao journal e espera que fique em disco.
+     * @throws IOException se falhar a escrita (o registo não deve ser confirmado)
+     */
+    public void append(User user) throws IOException {
+        logLock.lock();
+        try {
+            if (logOut == null) {
+                openLog(false);
+            }
+            recordBuffer.reset();
+            writeUser(recordOut, user);
+            recordCrc.reset();
+            recordCrc.update(recordBuffer.toByteArray(), 0, recordBuffer.size());
+            
+            ByteArrayOutputStream record = new ByteArrayOutputStream(8 + recordBuffer.size());
+            DataOutputStream out = new DataOutputStream(record);
+            out.writeInt(recordBuffer.size());
+            out.writeInt((int) recordCrc.getValue());
+            recordBuffer.writeTo(out);
+            // Um único write: o registo nunca fica intercalado com outro
+            logOut.write(record.toByteArray());
+            logOut.getChannel().force(false);
+            logRecords++;
+        } finally {
+            logLock.unlock();
+        }
     }
     
     /**
-     * Guarda lista de utilizadores no disco.
+     * Compacta o journal se tiver atingido o limiar.
+     * @param users fornece a lista completa de utilizadores (chamado com o journal bloqueado)
+     * @return true se compactou
+     */
+    public boolean compactIfNeeded(Supplier<List<User>> users) throws IOException {
+        logLock.lock();
+        try {
+            if (logRecords < compactThreshold) {
+                return false;
+            }
+            compact(users);
+            return true;
+        } finally {
+            logLock.unlock();
+        }
+    }
+    
+    /**
+     * Escreve um snapshot com todos os utilizadores e esvazia o journal.
+     * Os registos acrescentados durante a compactação esperam por ela; um utilizador que já estava
+     * no mapa mas cujo registo ainda não entrou no journal fica no snapshot e o seu registo
+     * (repetido) é ignorado na leitura.
+     * @param users fornece a lista completa de utilizadores (chamado com o journal bloqueado)
+     */
+    public void compact(Supplier<List<User>> users) throws IOException {
+        logLock.lock();
+        try {
+            save(users.get());
+            // Um crash aqui só deixa registos repetidos no journal
+            openLog(true);
+            logRecords = 0;
+        } finally {
+            logLock.unlock();
+        }
+    }
+    
+    public int getLogRecordCount() {
+        logLock.lock();
+        try {
+            return logRecords;
+        } finally {
+            logLock.unlock();
+        }
+    }
+    
+    /**
+     * Guarda lista de utilizadores no disco (snapshot).
      * @param users Lista de utilizadores
      * @throws IOException se falhar a escrita
      */
@@ -28,12 +153,11 @@ public class UserPersistence {
             parent.mkdirs();
         }
         
-        try (DataOutputStream out = new DataOutputStream(
-                new BufferedOutputStream(new FileOutputStream(file)))) {
-            
+        // Escrita num temporário + rename atómico, com checksum (ver AtomicFile)
+        AtomicFile.write(file, out -> {
             // Header
-            out.writeInt(0x55534552); // "USER" magic number
-            out.writeInt(1); // Versão
+            out.writeInt(SNAPSHOT_MAGIC); // "USER" magic number
+            out.writeInt(SNAPSHOT_VERSION); // Versão
             
             // Número de utilizadores
             out.writeInt(users.size());
@@ -42,32 +166,77 @@ public class UserPersistence {
             for (User user : users) {
                 writeUser(out, user);
             }
-        }
+        });
     }
     
     /**
-     * Carrega lista de utilizadores do disco.
+     * Carrega lista de utilizadores do disco: o snapshot seguido dos registos do journal.
+     * Uma cauda incompleta do journal é cortada, para os próximos registos ficarem a seguir ao último válido.
      * @return Lista de utilizadores ou lista vazia se não existir
-     * @throws IOException se falhar a leitura
+     * @throws IOException se falhar a leitura do snapshot
      */
     public List<User> load() throws IOException {
+        Map<String, User> users = new LinkedHashMap<>();
+        logLock.lock();
+        try {
+            legacyCredentials.clear();
+            legacyLog = false;
+            for (User user : loadSnapshot()) {
+                users.put(user.getUsername(), user);
+            }
+            for (User user : replayLog()) {
+                users.put(user.getUsername(), user);
+            }
+            // Os ficheiros antigos só têm um tipo de registo, por isso a ordem entre novos e antigos não importa
+            if (!legacyCredentials.isEmpty() || legacyLog) {
+                for (User user : hashLegacy(legacyCredentials)) {
+                    users.put(user.getUsername(), user);
+                }
+                legacyCredentials.clear();
+                List<User> migrated = new ArrayList<>(users.values());
+                compact(() -> migrated);
+                legacyLog = false;
+                System.out.println("  - Utilizadores convertidos para passwords com salt e PBKDF2: " + migrated.size());
+            }
+        } finally {
+            logLock.unlock();
+        }
+        return new ArrayList<>(users.values());
+    }
+    
+    // Deriva as passwords em claro dos ficheiros antigos (em paralelo: cada uma corre o PBKDF2)
+    private static List<User> hashLegacy(List<String[]> credentials) {
+        return credentials.parallelStream()
+            .map(c -> User.withPassword(c[0], c[1]))
+            .collect(Collectors.toList());
+    }
+    
+    /**
+     * Põe de lado o snapshot corrompido (renomeado com o sufixo dado) para que o próximo
+     * {@link #load} use apenas o journal.
+     */
+    public void quarantineSnapshot(String suffix) {
+        File file = new File(filePath);
+        file.renameTo(new File(filePath + suffix));
+    }
+    
+    private List<User> loadSnapshot() throws IOException {
         File file = new File(filePath);
         
         if (!file.exists()) {
             return new ArrayList<>();
         }
         
-        try (DataInputStream in = new DataInputStream(
-                new BufferedInputStream(new FileInputStream(file)))) {
+        try (DataInputStream in = AtomicFile.read(file)) {
             
             // Verificar header
             int magic = in.readInt();
-            if (magic != 0x55534552) {
+            if (magic != SNAPSHOT_MAGIC) {
                 throw new IOException("Ficheiro inválido (magic number incorreto)");
             }
             
             int version = in.readInt();
-            if (version != 1) {
+            if (version != SNAPSHOT_VERSION && version != LEGACY_SNAPSHOT_VERSION) {
                 throw new IOException("Versão não suportada: " + version);
             }
             
@@ -77,44 +246,139 @@ public class UserPersistence {
             
             // Ler cada utilizador
             for (int i = 0; i < count; i++) {
-                users.add(readUser(in));
+                if (version == LEGACY_SNAPSHOT_VERSION) {
+                    legacyCredentials.add(readLegacyCredentials(in));
+                } else {
+                    users.add(readUser(in));
+                }
             }
             
             return users;
         }
     }
     
+    // Chamado com o lock: lê os registos válidos do journal e corta a cauda inválida
+    private List<User> replayLog() throws IOException {
+        List<User> users = new ArrayList<>();
+        File file = new File(logPath);
+        if (!file.exists()) {
+            return users;
+        }
+        long validLength = LOG_HEADER_SIZE;
+        boolean invalidMagic = false;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            int magic = in.readInt();
+            legacyLog = magic == LEGACY_LOG_MAGIC;
+            invalidMagic = magic != LOG_MAGIC && !legacyLog;
+            while (!invalidMagic) {
+                int length = in.readInt();
+                int expected = in.readInt();
+                if (length <= 0 || length > MAX_RECORD_SIZE) {
+                    break;
+                }
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                CRC32C crc = new CRC32C();
+                crc.update(payload);
+                if ((int) crc.getValue() != expected) {
+                    break;
+                }
+                DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+                if (legacyLog) {
+                    legacyCredentials.add(readLegacyCredentials(record));
+                } else {
+                    users.add(readUser(record));
+                }
+                validLength += 8 + length;
+            }
+        } catch (EOFException e) {
+            // Fim do journal (ou cauda truncada)
+        }
+
+        if (invalidMagic) {
+            // Não é um journal: guardado à parte (para não ser reescrito) e ignorado.
+            // O rename é feito já com o ficheiro fechado.
+            System.err.println("  - Journal de utilizadores inválido, ignorado: " + file.getName());
+            file.renameTo(new File(logPath + ".corrupt"));
+            return users;
+        }
+        
+        if (file.length() > validLength) {
+            System.err.println("  - Journal de utilizadores: cauda inválida descartada ("
+                + (file.length() - validLength) + " bytes)");
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(Math.max(LOG_HEADER_SIZE, validLength));
+            }
+        }
+        logRecords = users.size() + legacyCredentials.size();
+        return users;
+    }
+    
+    // Chamado com o lock: abre o journal para acrescentar (ou esvazia-o, se truncate)
+    private void openLog(boolean truncate) throws IOException {
+        if (logOut != null) {
+            logOut.close();
+            logOut = null;
+        }
+        File file = new File(logPath);
+        File parent = file.getParentFile();
+        if (parent != null && !parent.exists()) {
+            parent.mkdirs();
+        }
+        boolean isNew = truncate || !file.exists() || file.length() < LOG_HEADER_SIZE;
+        FileOutputStream fileOut = new FileOutputStream(file, !isNew);
+        if (isNew) {
+            new DataOutputStream(fileOut).writeInt(LOG_MAGIC);
+            fileOut.getChannel().force(true);
+        }
+        logOut = fileOut;
+    }
+    
     /**
      * Escreve um utilizador.
      */
     private void writeUser(DataOutputStream out, User user) throws IOException {
         // Username
-        byte[] usernameBytes = user.getUsername().getBytes("UTF-8");
-        out.writeInt(usernameBytes.length);
-        out.write(usernameBytes);
+        writeBytes(out, user.getUsername().getBytes("UTF-8"));
         
-        // Password (string simples)
-        byte[] passwordBytes = user.getPassword().getBytes("UTF-8");
-        out.writeInt(passwordBytes.length);
-        out.write(passwordBytes);
+        // Credenciais derivadas (nunca a password)
+        out.writeInt(user.getIterations());
+        writeBytes(out, user.getSalt());
+        writeBytes(out, user.getPasswordHash());
     }
     
     /**
      * Lê um utilizador.
      */
     private User readUser(DataInputStream in) throws IOException {
-        // Username
-        int usernameLen = in.readInt();
-        byte[] usernameBytes = new byte[usernameLen];
-        in.readFully(usernameBytes);
-        String username = new String(usernameBytes, "UTF-8");
-        
-        // Password (string simples)
-        int passwordLen = in.readInt();
-        byte[] passwordBytes = new byte[passwordLen];
-        in.readFully(passwordBytes);
-        String password = new String(passwordBytes, "UTF-8");
-        
-        return new User(username, password);
+        String username = new String(readBytes(in), "UTF-8");
+        int iterations = in.readInt();
+        byte[] salt = readBytes(in);
+        byte[] hash = readBytes(in);
+        return new User(username, salt, hash, iterations);
+    }
+    
+    /**
+     * Lê um utilizador do formato antigo: [username][password em claro].
+     */
+    private String[] readLegacyCredentials(DataInputStream in) throws IOException {
+        String username = new String(readBytes(in), "UTF-8");
+        String password = new String(readBytes(in), "UTF-8");
+        return new String[]{username, password};
+    }
+    
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+    
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_RECORD_SIZE) {
+            throw new IOException("Comprimento inválido: " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
     }
 }
@@ -0,0 +1,117 @@
+package tests;
+
+import server.Authentication;
+import server.User;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiFunction;
+
+// Benchmark de uma "tempestade de logins" (abertura das lojas) diretamente sobre a Authentication,
+// sem rede: mede logins/s com 1, 2, 4, ... threads até ao número de cores.
+// Para comparação, repete a medição com um lock global de leitura/escrita à volta de cada login
+// (o desenho anterior da Authentication).
+// Cada login corre o PBKDF2; as iterações (3º argumento) podem ser reduzidas para o teste focar a contenção.
+public class TestLoginStorm {
+    public static void main(String[] args) throws InterruptedException {
+        int numUsers = 1_000;
+        int secondsPerStep = 2;
+        int iterations = 1_000;
+
+        if (args.length > 0) numUsers = Integer.parseInt(args[0]);
+        if (args.length > 1) secondsPerStep = Integer.parseInt(args[1]);
+        if (args.length > 2) iterations = Integer.parseInt(args[2]);
+        // Tem de ser definido antes do primeiro utilizador ser criado
+        System.setProperty("auth.iterations", String.valueOf(iterations));
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        System.out.println("=== Teste de Tempestade de Logins ===");
+        System.out.println("Utilizadores: " + numUsers + ", cores: " + cores + ", iterações PBKDF2: " + iterations
+            + ", " + secondsPerStep + "s por medição");
+
+        Authentication auth = new Authentication();
+        for (int i = 0; i < numUsers; i++) {
+            if (!auth.register("user" + i, "pass" + i)) {
+                System.err.println("Falhou registo de user" + i);
+                return;
+            }
+        }
+
+        ReentrantReadWriteLock globalLock = new ReentrantReadWriteLock();
+        BiFunction<String, String, User> withLock = (username, password) -> {
+            globalLock.readLock().lock();
+            try {
+                return auth.authenticate(username, password);
+            } finally {
+                globalLock.readLock().unlock();
+            }
+        };
+
+        // Aquecimento (JIT)
+        measure(auth::authenticate, numUsers, cores, 1);
+
+        System.out.println();
+        System.out.printf("%8s %16s %10s %20s%n", "threads", "logins/s", "speedup", "lock global (antes)");
+        double base = 0;
+        for (int threads = 1; ; threads = Math.min(threads * 2, cores)) {
+            double rate = measure(auth::authenticate, numUsers, threads, secondsPerStep);
+            double locked = measure(withLock, numUsers, threads, secondsPerStep);
+            if (threads == 1) {
+                base = rate;
+            }
+            System.out.printf("%8d %16.0f %9.2fx %20.0f%n", threads, rate, rate / base, locked);
+            if (threads == cores) {
+                break;
+            }
+        }
+    }
+
+    // Vários threads fazem logins (90% certos, 10% com password errada) durante o tempo dado
+    private static double measure(BiFunction<String, String, User> login, int numUsers, int threads, int seconds)
+            throws InterruptedException {
+        LongAdder logins = new LongAdder();
+        LongAdder failures = new LongAdder();
+        AtomicBoolean running = new AtomicBoolean(true);
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long count = 0;
+                while (running.get()) {
+                    int id = random.nextInt(numUsers);
+                    boolean wrong = random.nextInt(10) == 0;
+                    User user = login.apply("user" + id, wrong ? "errada" : "pass" + id);
+                    if ((user == null) != wrong) {
+                        failures.increment();
+                    }
+                    count++;
+                }
+                logins.add(count);
+            });
+            workers[t].start();
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+        Thread.sleep(seconds * 1000L);
+        running.set(false);
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        double elapsed = (System.nanoTime() - begin) / 1e9;
+
+        if (failures.sum() > 0) {
+            System.err.println("Resultados de login incorretos: " + failures.sum());
+        }
+        return logins.sum() / elapsed;
+    }
+}